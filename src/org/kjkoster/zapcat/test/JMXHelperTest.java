@@ -0,0 +1,210 @@
+package org.kjkoster.zapcat.test;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+import org.kjkoster.zapcat.zabbix.JMXHelper;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.RuntimeMBeanException;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that reading attributes through the helper gives the same results as
+ * reading them through the mbean server.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public class JMXHelperTest {
+    private final MBeanServer server = ManagementFactory
+            .getPlatformMBeanServer();
+
+    /**
+     * An mbean with a few simple getters and one that breaks.
+     */
+    public interface GaugeMBean {
+        /**
+         * @return 42.
+         */
+        int getValue();
+
+        /**
+         * @return <code>true</code>.
+         */
+        boolean isEnabled();
+
+        /**
+         * @return The name of the gauge.
+         */
+        String getName();
+
+        /**
+         * @return Never, it throws.
+         */
+        long getBroken();
+
+        /**
+         * @param a
+         *            A number.
+         * @param b
+         *            Another number.
+         * @return The sum.
+         */
+        int add(int a, int b);
+    }
+
+    /**
+     * @see GaugeMBean
+     */
+    public static class Gauge implements GaugeMBean {
+        int brokenReads = 0;
+
+        public int getValue() {
+            return 42;
+        }
+
+        public boolean isEnabled() {
+            return true;
+        }
+
+        public String getName() {
+            return "gauge";
+        }
+
+        public long getBroken() {
+            brokenReads++;
+            throw new IllegalStateException("broken");
+        }
+
+        public int add(final int a, final int b) {
+            return a + b;
+        }
+    }
+
+    /**
+     * Test that platform MXBean attributes come back as the mbean server
+     * returns them, including the ones that are wrapped into open types.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testPlatformMBeans() throws Exception {
+        assertSame("java.lang:type=Runtime", "VmVendor", "VmName",
+                "SpecVersion", "StartTime", "BootClassPathSupported",
+                "InputArguments", "SystemProperties");
+        assertSame("java.lang:type=OperatingSystem", "AvailableProcessors",
+                "Arch", "Name");
+        assertSame("java.lang:type=Threading", "ThreadCpuTimeSupported",
+                "ThreadContentionMonitoringEnabled");
+        assertSame("java.lang:type=ClassLoading", "Verbose");
+
+        // memory usage changes all the time, but the type has to match
+        final ObjectName memory = new ObjectName("java.lang:type=Memory");
+        final Object direct = JMXHelper.getAttribute(server, memory,
+                "HeapMemoryUsage");
+        assertTrue(direct instanceof CompositeData);
+        assertEquals(((CompositeData) server.getAttribute(memory,
+                "HeapMemoryUsage")).getCompositeType(),
+                ((CompositeData) direct).getCompositeType());
+    }
+
+    /**
+     * Test that our own standard mbeans read the same, and that a getter that
+     * throws is reported like the mbean server does, without calling it twice.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testStandardMBean() throws Exception {
+        final Gauge gauge = new Gauge();
+        final ObjectName name = JMXHelper.register(gauge,
+                "org.kjkoster.zapcat.test:type=Gauge");
+        try {
+            // twice, so that the second read uses the binding
+            assertSame(name.toString(), "Value", "Enabled", "Name");
+            assertSame(name.toString(), "Value", "Enabled", "Name");
+
+            try {
+                server.getAttribute(name, "Broken");
+                fail();
+            } catch (RuntimeMBeanException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            assertEquals(1, gauge.brokenReads);
+
+            for (int i = 2; i <= 3; i++) {
+                try {
+                    JMXHelper.getAttribute(server, name, "Broken");
+                    fail();
+                } catch (RuntimeMBeanException e) {
+                    assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+                assertEquals(i, gauge.brokenReads);
+            }
+        } finally {
+            JMXHelper.unregister(name);
+        }
+    }
+
+    /**
+     * Test that the old operation helper still works.
+     *
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testOpQuery() throws Exception {
+        final ObjectName name = JMXHelper.register(new Gauge(),
+                "org.kjkoster.zapcat.test:type=Gauge");
+        try {
+            assertEquals("5", JMXHelper.op_query(name.toString(), "add",
+                    "[2,3]"));
+            assertEquals("9", JMXHelper.op_query(name.toString(), "ADD",
+                    "[4,5]"));
+            try {
+                JMXHelper.op_query(name.toString(), "add", "[2]");
+                fail();
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        } finally {
+            JMXHelper.unregister(name);
+        }
+    }
+
+    private void assertSame(final String objectName,
+            final String... attributes) throws Exception {
+        final ObjectName name = new ObjectName(objectName);
+        for (final String attribute : attributes) {
+            final Object expected = server.getAttribute(name, attribute);
+            final Object actual = JMXHelper.getAttribute(server, name,
+                    attribute);
+            assertTrue(objectName + " " + attribute + ": " + expected
+                    + " != " + actual, Arrays.deepEquals(
+                    new Object[] { expected }, new Object[] { actual }));
+            assertEquals(expected.getClass(), actual.getClass());
+        }
+    }
+}
@@ -28,6 +28,7 @@ import javax.management.ObjectName;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.util.Properties;
 
 import static org.junit.Assert.*;
@@ -128,6 +129,63 @@ public class ZabbixAgentConfigurationTest {
         agent.stop();
     }
 
+    /**
+     * Test that the whitelist accepts CIDR ranges and reports them without
+     * looking anything up.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testWhitelist() throws Exception {
+        System.setProperty(ZabbixAgent.WHITELIST_PROPERTY,
+                "10.0.0.0/8, 127.0.0.1/8");
+        Agent agent = new ZabbixAgent();
+        assertAgentUp(DEFAULTPORT);
+        assertEquals("[10.0.0.0/8 (10.0.0.0/8), 127.0.0.1/8 (127.0.0.0/8)]",
+                JMXHelper.query(java.lang.management.ManagementFactory
+                        .getPlatformMBeanServer(), new ObjectName(
+                        "org.kjkoster.zapcat:type=Agent,port=" + DEFAULTPORT),
+                        "Whitelist"));
+        assertTrue(ping(DEFAULTPORT) > 0);
+        agent.stop();
+
+        System.setProperty(ZabbixAgent.WHITELIST_PROPERTY, "10.0.0.0/8");
+        agent = new ZabbixAgent();
+        assertAgentUp(DEFAULTPORT);
+        assertEquals(-1, ping(DEFAULTPORT));
+        agent.stop();
+
+        // host names are resolved before the first peer connects, and
+        // out of range addresses are not mistaken for host names
+        System.setProperty(ZabbixAgent.WHITELIST_PROPERTY,
+                "999.1.1.1, localhost");
+        agent = new ZabbixAgent();
+        assertAgentUp(DEFAULTPORT);
+        final String whitelist = JMXHelper.query(
+                java.lang.management.ManagementFactory
+                        .getPlatformMBeanServer(), new ObjectName(
+                        "org.kjkoster.zapcat:type=Agent,port=" + DEFAULTPORT),
+                "Whitelist");
+        assertTrue(whitelist, whitelist.startsWith("[localhost (127.0.0.1"));
+        assertTrue(ping(DEFAULTPORT) > 0);
+        agent.stop();
+    }
+
+    private int ping(final int port) throws Exception {
+        final Socket socket = new Socket(InetAddress.getByName("127.0.0.1"),
+                port);
+        try {
+            socket.getOutputStream().write("agent.ping\n".getBytes());
+            return socket.getInputStream().read(new byte[1024]);
+        } catch (SocketException e) {
+            // the agent may have reset the connection
+            return -1;
+        } finally {
+            socket.close();
+        }
+    }
+
     private void assertAgentDown(final int port) throws Exception {
         try {
             JMXHelper.query(java.lang.management.ManagementFactory.getPlatformMBeanServer(), new ObjectName(
@@ -27,12 +27,18 @@ import org.springframework.jmx.export.MBeanExporter;
 
 import javax.management.MBeanServer;
 import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Properties;
@@ -314,6 +320,747 @@ public class ZabbixAgentProtocolTest {
         agent.stop();
     }
 
+    @Test
+    public void testMultiKey() throws Exception {
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            query(1099, "jmx.multi[\"org.kjkoster.zapcat:type=Agent,port=1099\",\"Port\", \"Nope\"]",
+                    "{\"Port\":\"1099\",\"Nope\":null}".getBytes());
+            query(1099, "jmx.multi[\"org.kjkoster.zapcat:type=Agent,port=1099\"]", "ZBX_NOTSUPPORTED".getBytes());
+        } finally {
+            agent.stop();
+        }
+    }
+
+    @Test
+    public void testDiscoveryKey() throws Exception {
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            query(1099, "jmx.discovery[\"org.kjkoster.zapcat:type=Agent,port=1099,*\"]",
+                    "{\"data\":[{\"{#JMXOBJ}\":\"org.kjkoster.zapcat:port=1099,type=Agent\"".getBytes());
+            query(1099, "jmx.discovery[\"nosuchdomain:*\"]", "{\"data\":[]}".getBytes());
+        } finally {
+            agent.stop();
+        }
+    }
+
+    @Test
+    public void testOperationKey() throws Exception {
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            query(1099, "jmx_op[java.util.logging:type=Logging][GETLOGGERLEVEL][global]", new byte[0]);
+            query(1099, "jmx_op[java.util.logging:type=Logging][getLoggerLevel][org.kjkoster.zapcat.nosuchlogger]", "ZBX_NOTSUPPORTED".getBytes());
+            query(1099, "jmx_op[java.lang:type=Threading][getThreadCpuTime][1,2]", "ZBX_NOTSUPPORTED".getBytes());
+            query(1099, "jmx_op[java.lang:type=Threading][getThreadCpuTime][one]", "ZBX_NOTSUPPORTED".getBytes());
+        } finally {
+            agent.stop();
+        }
+    }
+
+    @Test
+    public void testAggregateKeys() throws Exception {
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            query(1099, "jmx.count[org.kjkoster.zapcat:type=Agent,*]", "1".getBytes());
+            query(1099, "jmx.sum[org.kjkoster.zapcat:type=Agent,*][Port]", "1099".getBytes());
+            query(1099, "jmx.max[\"org.kjkoster.zapcat:type=Agent,*\",\"Port\"]", "1099".getBytes());
+            query(1099, "jmx.avg[nosuchdomain:*][Port]", "ZBX_NOTSUPPORTED".getBytes());
+        } finally {
+            agent.stop();
+        }
+    }
+
+    @Test
+    public void testRateAndDeltaKeys() throws Exception {
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            // the first sample has nothing to compare to
+            query(1099, "jmx.delta[org.kjkoster.zapcat:type=Agent,port=1099][Port]", "0".getBytes());
+            query(1099, "jmx.delta[org.kjkoster.zapcat:type=Agent,port=1099][Port]", "0".getBytes());
+            query(1099, "jmx.rate[\"org.kjkoster.zapcat:type=Agent,port=1099\",\"Port\"]", "0".getBytes());
+            query(1099, "jmx.rate[\"org.kjkoster.zapcat:type=Agent,port=1099\",\"Port\"]", "0".getBytes());
+            query(1099, "jmx.rate[java.lang:type=Runtime][VmVendor]", "ZBX_NOTSUPPORTED".getBytes());
+            query(1099, "jmx.delta[org.kjkoster.zapcat:type=Agent,port=1099]", "ZBX_NOTSUPPORTED".getBytes());
+        } finally {
+            agent.stop();
+        }
+    }
+
+    @Test
+    public void testWindowKeys() throws Exception {
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            query(1099, "jmx.window[\"org.kjkoster.zapcat:type=Agent,port=1099\",\"Port\",max,10s]", "1099".getBytes());
+            Thread.sleep(500);
+            query(1099, "jmx.window[\"org.kjkoster.zapcat:type=Agent,port=1099\",\"Port\",p99,10s]", "1099".getBytes());
+            query(1099, "jmx.window[\"org.kjkoster.zapcat:type=Agent,port=1099\",\"Port\",avg]", "1099".getBytes());
+            query(1099, "jmx.window[\"org.kjkoster.zapcat:type=Agent,port=1099\",\"Port\",median]", "ZBX_NOTSUPPORTED".getBytes());
+            query(1099, "jmx.window[\"java.lang:type=Runtime\",\"VmVendor\",max]", "ZBX_NOTSUPPORTED".getBytes());
+        } finally {
+            agent.stop();
+        }
+    }
+
+    @Test
+    public void testHotKeys() throws Exception {
+        System.setProperty(ZabbixAgent.HOT_PROPERTY, "org.kjkoster.zapcat:type=Agent,*");
+        System.setProperty(ZabbixAgent.HOT_INTERVAL_PROPERTY, "200");
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            // the first poll is live and makes the attribute hot
+            query(1099, "jmx[org.kjkoster.zapcat:type=Agent,port=1099][Port]", "1099".getBytes());
+
+            // the first refresh may start before the attribute was added
+            final ObjectName snapshots = new ObjectName("org.kjkoster.zapcat:type=Snapshots,port=1099");
+            final long deadline = System.currentTimeMillis() + 5000L;
+            while ((Long) ManagementFactory.getPlatformMBeanServer().getAttribute(snapshots, "Refreshes") < 2L) {
+                assertTrue("no refresh", System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+
+            // refreshes run with a fixed delay, so allow for one that is running
+            final long age = Long.parseLong(ask(1099, "jmx.age[org.kjkoster.zapcat:type=Agent,port=1099][Port]"));
+            assertTrue("age " + age, age <= 400L);
+            query(1099, "jmx[org.kjkoster.zapcat:type=Agent,port=1099][Port]", "1099".getBytes());
+            query(1099, "jmx.age[java.lang:type=Runtime][Uptime]", "0".getBytes());
+        } finally {
+            agent.stop();
+        }
+    }
+
+    @Test
+    public void testAttributePaths() throws Exception {
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            query(1099, "jmx[java.lang:type=Runtime][SystemProperties.java\\.specification\\.version]",
+                    System.getProperty("java.specification.version").getBytes());
+            query(1099, "jmx[java.lang:type=Runtime][SystemProperties.org\\.kjkoster\\.nosuchproperty]", "ZBX_NOTSUPPORTED".getBytes());
+            query(1099, "jmx[java.lang:type=Runtime][InputArguments.100000]", "ZBX_NOTSUPPORTED".getBytes());
+            query(1099, "jmx[java.lang:type=Runtime][VmVendor.nosuchfield]", "ZBX_NOTSUPPORTED".getBytes());
+            query(1099, "jmx[java.lang:type=Runtime][VmVendor..]", "ZBX_NOTSUPPORTED".getBytes());
+        } finally {
+            agent.stop();
+        }
+    }
+
+    /**
+     * An mbean that takes its time.
+     */
+    public interface SlowMBean {
+        /**
+         * @return Eventually, 42.
+         */
+        int getValue();
+    }
+
+    /**
+     * @see SlowMBean
+     */
+    public static class Slow implements SlowMBean {
+        public int getValue() {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                // answer early
+            }
+            return 42;
+        }
+    }
+
+    /**
+     * An mbean that counts how often it was read.
+     */
+    public interface CounterMBean {
+        /**
+         * @return The number of reads so far, this one included.
+         */
+        int getValue();
+    }
+
+    /**
+     * @see CounterMBean
+     */
+    public static class Counter implements CounterMBean {
+        private int value;
+
+        Counter(final int start) {
+            value = start;
+        }
+
+        public synchronized int getValue() {
+            return ++value;
+        }
+    }
+
+    /**
+     * Test that results are served from the cache until they expire, that the
+     * cache stays within its size and that switching mbean servers does not
+     * serve the other server's results.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testResultCache() throws Exception {
+        System.setProperty(ZabbixAgent.CACHE_TTL_PROPERTY, "300");
+        System.setProperty(ZabbixAgent.CACHE_SIZE_PROPERTY, "4");
+        final MBeanServer platform = ManagementFactory.getPlatformMBeanServer();
+        final MBeanServer other = MBeanServerFactory.newMBeanServer();
+        final ObjectName counter = new ObjectName("org.kjkoster.zapcat.test:type=Counter");
+        platform.registerMBean(new Counter(0), counter);
+        other.registerMBean(new Counter(1000), counter);
+        final ObjectName statistics = new ObjectName("org.kjkoster.zapcat:type=ResultCache,port=1099");
+        final ZabbixAgent agent = new ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            final String key = "jmx[org.kjkoster.zapcat.test:type=Counter][Value]";
+            assertEquals("1", ask(1099, key));
+            assertEquals("1", ask(1099, key));
+            assertEquals(1L, platform.getAttribute(statistics, "Hits"));
+
+            Thread.sleep(400);
+            assertEquals("2", ask(1099, key));
+
+            agent.setMbeanServer(other);
+            assertEquals("1001", ask(1099, key));
+            assertEquals("1001", ask(1099, key));
+            agent.setMbeanServer(platform);
+            assertEquals("3", ask(1099, key));
+
+            final String[] attributes = { "VmName", "VmVendor", "SpecName",
+                    "SpecVendor", "SpecVersion", "Name" };
+            for (final String attribute : attributes) {
+                ask(1099, "jmx[java.lang:type=Runtime][" + attribute + "]");
+            }
+            assertTrue((Long) platform.getAttribute(statistics, "Evictions") > 0L);
+            assertTrue((Integer) platform.getAttribute(statistics, "Size") <= 4);
+        } finally {
+            agent.stop();
+            platform.unregisterMBean(counter);
+        }
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        System.setProperty(ZabbixAgent.DEADLINE_PROPERTY, "100");
+        System.setProperty(ZabbixAgent.BREAKER_THRESHOLD_PROPERTY, "1");
+        final ObjectName slow = new ObjectName("org.kjkoster.zapcat.test:type=Slow");
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Slow(), slow);
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            query(1099, "jmx[org.kjkoster.zapcat.test:type=Slow][Value]", "ZBX_NOTSUPPORTED".getBytes());
+            query(1099, "jmx[org.kjkoster.zapcat.test:type=Slow][Value]", "ZBX_NOTSUPPORTED".getBytes());
+            query(1099, "jmx[org.kjkoster.zapcat:type=CircuitBreaker,port=1099][Trips]", "1".getBytes());
+            query(1099, "jmx[org.kjkoster.zapcat:type=CircuitBreaker,port=1099][FastFails]", "1".getBytes());
+            query(1099, "agent.ping", "1".getBytes());
+        } finally {
+            agent.stop();
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(slow);
+        }
+    }
+
+    @Test
+    public void testBusyEvaluators() throws Exception {
+        // one evaluator thread, so a second query cannot get a deadline
+        System.setProperty(ZabbixAgent.DEADLINE_THREADS_PROPERTY, "1");
+        final ObjectName slow = new ObjectName("org.kjkoster.zapcat.test:type=Slow");
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Slow(), slow);
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            final String[] answer = new String[1];
+            final Throwable[] failure = new Throwable[1];
+            final Thread other = new Thread() {
+                public void run() {
+                    try {
+                        answer[0] = ask(1099, "jmx[org.kjkoster.zapcat.test:type=Slow][Value]");
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            };
+            other.start();
+            // let the other query take the only evaluator thread
+            Thread.sleep(300);
+            final long start = System.currentTimeMillis();
+            assertEquals("ZBX_NOTSUPPORTED", ask(1099, "jmx[org.kjkoster.zapcat.test:type=Slow][Value]"));
+            assertTrue(System.currentTimeMillis() - start < 500);
+            other.join();
+            assertNull(failure[0]);
+            assertEquals("42", answer[0]);
+        } finally {
+            agent.stop();
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(slow);
+        }
+    }
+
+    /**
+     * Test that a query in a ZBXD frame is read up to the length in its
+     * header, that the length is little-endian and that the answer is framed
+     * the same way.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testFramedQuery() throws Exception {
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            assertEquals("1", new String(exchange(1099, frame("agent.ping")), "UTF-8"));
+
+            // a key longer than 255 bytes needs the second length byte
+            final StringBuilder key = new StringBuilder("system.property[zapcat.");
+            while (key.length() < 300) {
+                key.append('x');
+            }
+            key.append(']');
+            System.setProperty(key.substring(16, key.length() - 1), "long");
+            assertEquals("long", new String(exchange(1099, frame(key.toString())), "UTF-8"));
+
+            // and an answer longer than 255 bytes
+            final String discovery = new String(exchange(1099,
+                    frame("jmx.discovery[java.lang:*]")), "UTF-8");
+            assertTrue(discovery.length() > 255);
+            assertTrue(discovery.startsWith("{"));
+        } finally {
+            agent.stop();
+        }
+    }
+
+    /**
+     * Test that a bare query ends at its newline, or at the end of the
+     * stream, and that protocol 1.1 answers it without a frame.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testNewlineQuery() throws Exception {
+        System.setProperty(ZabbixAgent.PROTOCOL_PROPERTY, "1.1");
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            assertEquals("1", new String(raw(1099, "agent.ping\n".getBytes("US-ASCII"), false), "US-ASCII"));
+            assertEquals("1", new String(raw(1099, "agent.ping".getBytes("US-ASCII"), true), "US-ASCII"));
+
+            // a framed query is still answered in a frame
+            assertEquals("1", new String(exchange(1099, frame("agent.ping")), "UTF-8"));
+        } finally {
+            agent.stop();
+        }
+    }
+
+    /**
+     * Test that queries larger than the maximum frame size are dropped
+     * without an answer, whether the header announces them or not.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testOversizedFrame() throws Exception {
+        System.setProperty(ZabbixAgent.MAX_FRAME_PROPERTY, "64");
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            final StringBuilder key = new StringBuilder("system.property[");
+            while (key.length() < 100) {
+                key.append('x');
+            }
+            key.append(']');
+
+            assertEquals(0, raw(1099, frame(key.toString()), false).length);
+            assertEquals(0, raw(1099, (key + "\n").getBytes("US-ASCII"), false).length);
+
+            // a header claiming more than fits is refused before the body
+            final byte[] header = frame("");
+            header[6] = 0x01;
+            assertEquals(0, raw(1099, header, false).length);
+
+            // the limit leaves normal queries alone
+            assertEquals("1", new String(exchange(1099, frame("agent.ping")), "UTF-8"));
+        } finally {
+            agent.stop();
+        }
+    }
+
+    /**
+     * Test that non-ASCII values are sent as UTF-8 and that the length in the
+     * header counts bytes, not characters.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testUnicodeValue() throws Exception {
+        final String value = "h\u00e9llo \u20ac \ud83d\ude00";
+        System.setProperty("zapcat.test.unicode", value);
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            final byte[] answer = exchange(1099, frame("system.property[zapcat.test.unicode]"));
+            assertArrayEquals(value.getBytes("UTF-8"), answer);
+            assertEquals(value, ask(1099, "system.property[zapcat.test.unicode]"));
+        } finally {
+            agent.stop();
+        }
+    }
+
+    /**
+     * Test that the agent gives the same answers in "nio" mode as it does with
+     * blocking I/O, and that it puts a query together from several writes.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testNonBlocking() throws Exception {
+        System.setProperty("zapcat.test.unicode", "h\u00e9llo \u20ac");
+        final String[] keys = { "agent.ping", "agent.version",
+                "system.property[java.version]",
+                "system.property[zapcat.test.unicode]",
+                "jmx[java.lang:type=Runtime][VmVendor]",
+                "jmx[java.lang:type=Memory][HeapMemoryUsage.max]",
+                "jmx[\"java.lang:type=Runtime\",\"SpecVendor\"]",
+                "jmx[java.lang:type=Runtime][NoSuchAttribute]",
+                "jmx.discovery[java.lang:type=Runtime]", "nosuchkey" };
+
+        final String[] blocking = new String[keys.length];
+        Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            for (int i = 0; i < keys.length; i++) {
+                blocking[i] = new String(exchange(1099, frame(keys[i])), "UTF-8");
+            }
+        } finally {
+            agent.stop();
+        }
+        Thread.sleep(100);
+
+        System.setProperty(ZabbixAgent.IO_PROPERTY, "nio");
+        agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            for (int i = 0; i < keys.length; i++) {
+                assertEquals(keys[i], blocking[i], new String(exchange(1099,
+                        frame(keys[i])), "UTF-8"));
+                assertEquals(keys[i], blocking[i], ask(1099, keys[i]));
+            }
+
+            // split inside the marker, the length field and a UTF-8 character
+            final byte[] request = frame("system.property[zapcat.test.unicode]");
+            final byte[] answer = split(1099, request, 3, 9, 14, 20);
+            assertEquals("h\u00e9llo \u20ac", new String(answer, "UTF-8"));
+
+            final Socket socket = new Socket(InetAddress.getLocalHost(), 1099);
+            try {
+                socket.setSoTimeout(5000);
+                final OutputStream out = socket.getOutputStream();
+                out.write("agent.".getBytes("US-ASCII"));
+                out.flush();
+                Thread.sleep(50);
+                out.write("ping\n".getBytes("US-ASCII"));
+                out.flush();
+
+                final DataInputStream in = new DataInputStream(socket.getInputStream());
+                final byte[] response = new byte[14];
+                in.readFully(response);
+                assertEquals('1', response[13]);
+            } finally {
+                socket.close();
+            }
+        } finally {
+            agent.stop();
+        }
+    }
+
+    /**
+     * An mbean with an attribute that cannot be written as text.
+     */
+    public interface BrokenMBean {
+        /**
+         * @return A value whose <code>toString()</code> throws.
+         */
+        Object getValue();
+    }
+
+    /**
+     * @see BrokenMBean
+     */
+    public static class Broken implements BrokenMBean {
+        public Object getValue() {
+            return new Object() {
+                @Override
+                public String toString() {
+                    throw new AssertionError("broken");
+                }
+            };
+        }
+    }
+
+    /**
+     * Test that the "nio" agent still answers a query whose evaluation throws
+     * an error, and does not leave the connection hanging.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testNonBlockingError() throws Exception {
+        System.setProperty(ZabbixAgent.IO_PROPERTY, "nio");
+        // no deadline, so the error surfaces on the handler thread
+        System.setProperty(ZabbixAgent.DEADLINE_PROPERTY, "0");
+        final ObjectName broken = new ObjectName("org.kjkoster.zapcat.test:type=Broken");
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Broken(), broken);
+        final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+        try {
+            // give the agent some time to open the port
+            Thread.sleep(100);
+            assertEquals("ZBX_NOTSUPPORTED", new String(exchange(1099,
+                    frame("jmx[org.kjkoster.zapcat.test:type=Broken][Value]")), "UTF-8"));
+            assertEquals("1", ask(1099, "agent.ping"));
+        } finally {
+            agent.stop();
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(broken);
+        }
+    }
+
+    /**
+     * Send the request in pieces, cut at the given offsets, with a pause
+     * between the writes.
+     */
+    private static byte[] split(final int port, final byte[] request,
+            final int... cuts) throws Exception {
+        final Socket socket = new Socket(InetAddress.getLocalHost(), port);
+        try {
+            socket.setSoTimeout(5000);
+            socket.setTcpNoDelay(true);
+            final OutputStream out = socket.getOutputStream();
+            int from = 0;
+            for (final int cut : cuts) {
+                out.write(request, from, cut - from);
+                out.flush();
+                Thread.sleep(50);
+                from = cut;
+            }
+            out.write(request, from, request.length - from);
+            out.flush();
+
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final byte[] header = new byte[13];
+            in.readFully(header);
+            final byte[] value = new byte[header[5] & 0xff | (header[6] & 0xff) << 8];
+            in.readFully(value);
+            return value;
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Test that without keep-alive the agent answers one query per
+     * connection, even when the peer sends more, in both I/O modes.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testSingleQuery() throws Exception {
+        for (final String io : new String[] { "blocking", "nio" }) {
+            System.setProperty(ZabbixAgent.IO_PROPERTY, io);
+            final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+            try {
+                // give the agent some time to open the port
+                Thread.sleep(100);
+                final ByteArrayOutputStream request = new ByteArrayOutputStream();
+                request.write(frame("agent.ping"));
+                request.write(frame("agent.version"));
+                request.write("agent.ping\n".getBytes("US-ASCII"));
+
+                // the one frame is checked against everything that came back
+                assertEquals(io, "1", new String(exchange(1099, request.toByteArray()), "UTF-8"));
+            } finally {
+                agent.stop();
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * Test that with keep-alive the agent answers pipelined queries in order,
+     * answers queries that arrive later on the same connection and closes the
+     * connection once it has been idle for too long, in both I/O modes.
+     * 
+     * @throws Exception
+     *             When the test failed.
+     */
+    @Test
+    public void testKeepAlive() throws Exception {
+        System.setProperty(ZabbixAgent.KEEPALIVE_PROPERTY, "500");
+        for (final String io : new String[] { "blocking", "nio" }) {
+            System.setProperty(ZabbixAgent.IO_PROPERTY, io);
+            final Agent agent = new org.kjkoster.zapcat.zabbix.ZabbixAgent(InetAddress.getLocalHost(), 1099);
+            try {
+                // give the agent some time to open the port
+                Thread.sleep(100);
+                final Socket socket = new Socket(InetAddress.getLocalHost(), 1099);
+                try {
+                    socket.setSoTimeout(5000);
+                    final OutputStream out = socket.getOutputStream();
+                    final DataInputStream in = new DataInputStream(socket.getInputStream());
+
+                    final ByteArrayOutputStream request = new ByteArrayOutputStream();
+                    request.write(frame("system.property[java.version]"));
+                    request.write(frame("agent.ping"));
+                    request.write("system.property[java.vendor]\n".getBytes("US-ASCII"));
+                    out.write(request.toByteArray());
+                    out.flush();
+                    assertEquals(io, System.getProperty("java.version"), answer(in));
+                    assertEquals(io, "1", answer(in));
+                    assertEquals(io, System.getProperty("java.vendor"), answer(in));
+
+                    // well within the timeout, the connection is still open
+                    Thread.sleep(200);
+                    out.write(frame("agent.ping"));
+                    out.flush();
+                    assertEquals(io, "1", answer(in));
+
+                    // and it is closed once it has been idle for too long
+                    final long start = System.currentTimeMillis();
+                    assertEquals(io, -1, in.read());
+                    assertTrue(io, System.currentTimeMillis() - start >= 400);
+                } finally {
+                    socket.close();
+                }
+            } finally {
+                agent.stop();
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static String answer(final DataInputStream in) throws IOException {
+        final byte[] header = new byte[13];
+        in.readFully(header);
+        assertEquals('Z', header[0]);
+        final byte[] value = new byte[header[5] & 0xff | (header[6] & 0xff) << 8];
+        in.readFully(value);
+        return new String(value, "UTF-8");
+    }
+
+    private static byte[] frame(final String key) throws IOException {
+        final byte[] body = key.getBytes("UTF-8");
+        final byte[] frame = new byte[13 + body.length];
+        frame[0] = 'Z';
+        frame[1] = 'B';
+        frame[2] = 'X';
+        frame[3] = 'D';
+        frame[4] = 0x01;
+        for (int i = 0; i < 8; i++) {
+            frame[5 + i] = (byte) ((long) body.length >>> (8 * i));
+        }
+        System.arraycopy(body, 0, frame, 13, body.length);
+        return frame;
+    }
+
+    /**
+     * Send the bytes and read everything the agent sends back until it closes
+     * the connection.
+     */
+    private static byte[] raw(final int port, final byte[] request,
+            final boolean shutdown) throws IOException {
+        final Socket socket = new Socket(InetAddress.getLocalHost(), port);
+        try {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(request);
+            socket.getOutputStream().flush();
+            if (shutdown) {
+                socket.shutdownOutput();
+            }
+
+            final InputStream in = socket.getInputStream();
+            final ByteArrayOutputStream answer = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            try {
+                for (int n; (n = in.read(buffer)) != -1;) {
+                    answer.write(buffer, 0, n);
+                }
+            } catch (SocketException e) {
+                // the agent may reset a connection it refused
+            }
+            return answer.toByteArray();
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Send the bytes and check that the answer is one frame whose
+     * little-endian length matches its body.
+     */
+    private static byte[] exchange(final int port, final byte[] request)
+            throws IOException {
+        final byte[] answer = raw(port, request, false);
+        assertTrue(answer.length >= 13);
+        assertEquals('Z', answer[0]);
+        assertEquals('B', answer[1]);
+        assertEquals('X', answer[2]);
+        assertEquals('D', answer[3]);
+        assertEquals((byte) 0x01, answer[4]);
+        long length = 0L;
+        for (int i = 7; i >= 0; i--) {
+            length = length << 8 | answer[5 + i] & 0xff;
+        }
+        assertEquals(answer.length - 13, length);
+        return Arrays.copyOfRange(answer, 13, answer.length);
+    }
+
+    private String ask(int port, String key) throws IOException {
+        final Socket socket = new Socket(InetAddress.getLocalHost(), port);
+        try {
+            final Writer out = new OutputStreamWriter(socket.getOutputStream());
+            out.write(key);
+            out.write('\n');
+            out.flush();
+
+            final DataInputStream in = new DataInputStream(socket.getInputStream());
+            final byte[] header = new byte[13];
+            in.readFully(header);
+            final byte[] value = new byte[header[5] & 0xff | (header[6] & 0xff) << 8];
+            in.readFully(value);
+            return new String(value, "UTF-8");
+        } finally {
+            socket.close();
+        }
+    }
+
     private void query(int port, String key, byte[] expected) throws IOException {
         final Socket socket = new Socket(InetAddress.getLocalHost(), port);
 
@@ -0,0 +1,262 @@
+package org.kjkoster.zapcat.util;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * A minimal streaming JSON writer, just enough for the documents that Zabbix
+ * expects from us. Separators are inserted automatically, so callers just
+ * write names and values in order.
+ * <p>
+ * Writers are not thread safe.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public final class JsonWriter {
+    private static final int MAX_DEPTH = 32;
+
+    private final StringBuilder out;
+
+    // per nesting level, whether the next element needs a comma in front
+    private final boolean[] separate = new boolean[MAX_DEPTH];
+
+    private int depth = 0;
+
+    private boolean afterName = false;
+
+    /**
+     * Create a new writer.
+     */
+    public JsonWriter() {
+        this(new StringBuilder(256));
+    }
+
+    /**
+     * Create a new writer that appends to an existing buffer.
+     *
+     * @param out
+     *            The buffer to append to.
+     */
+    public JsonWriter(final StringBuilder out) {
+        this.out = out;
+    }
+
+    /**
+     * Start an object.
+     *
+     * @return This writer.
+     */
+    public JsonWriter beginObject() {
+        return open('{');
+    }
+
+    /**
+     * End the current object.
+     *
+     * @return This writer.
+     */
+    public JsonWriter endObject() {
+        return close('}');
+    }
+
+    /**
+     * Start an array.
+     *
+     * @return This writer.
+     */
+    public JsonWriter beginArray() {
+        return open('[');
+    }
+
+    /**
+     * End the current array.
+     *
+     * @return This writer.
+     */
+    public JsonWriter endArray() {
+        return close(']');
+    }
+
+    /**
+     * Write the name of the next member of the current object.
+     *
+     * @param name
+     *            The member name.
+     * @return This writer.
+     */
+    public JsonWriter name(final String name) {
+        separator();
+        quote(out, name);
+        out.append(':');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * Write a string value, or <code>null</code>.
+     *
+     * @param value
+     *            The value.
+     * @return This writer.
+     */
+    public JsonWriter value(final String value) {
+        separator();
+        if (value == null) {
+            out.append("null");
+        } else {
+            quote(out, value);
+        }
+        return this;
+    }
+
+    /**
+     * Write a number.
+     *
+     * @param value
+     *            The value.
+     * @return This writer.
+     */
+    public JsonWriter value(final long value) {
+        separator();
+        out.append(value);
+        return this;
+    }
+
+    /**
+     * Write a number. Values that JSON cannot represent are written as
+     * <code>null</code>.
+     *
+     * @param value
+     *            The value.
+     * @return This writer.
+     */
+    public JsonWriter value(final double value) {
+        separator();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.append("null");
+        } else {
+            out.append(value);
+        }
+        return this;
+    }
+
+    /**
+     * Write a name and a string value.
+     *
+     * @param name
+     *            The member name.
+     * @param value
+     *            The value.
+     * @return This writer.
+     */
+    public JsonWriter member(final String name, final String value) {
+        return name(name).value(value);
+    }
+
+    /**
+     * Write a name and a number.
+     *
+     * @param name
+     *            The member name.
+     * @param value
+     *            The value.
+     * @return This writer.
+     */
+    public JsonWriter member(final String name, final long value) {
+        return name(name).value(value);
+    }
+
+    /**
+     * Read the document as it was written so far.
+     *
+     * @return The JSON text.
+     */
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+
+    private JsonWriter open(final char bracket) {
+        separator();
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("nested too deep");
+        }
+        out.append(bracket);
+        separate[depth++] = false;
+        return this;
+    }
+
+    private JsonWriter close(final char bracket) {
+        depth--;
+        out.append(bracket);
+        return this;
+    }
+
+    private void separator() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (separate[depth - 1]) {
+                out.append(',');
+            }
+            separate[depth - 1] = true;
+        }
+    }
+
+    /**
+     * Append a string as a quoted and escaped JSON string.
+     *
+     * @param out
+     *            The buffer to append to.
+     * @param value
+     *            The string to quote.
+     */
+    public static void quote(final StringBuilder out, final String value) {
+        out.append('"');
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.append("\\u00");
+                    out.append(Character.forDigit(c >> 4, 16));
+                    out.append(Character.forDigit(c & 0xf, 16));
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+        out.append('"');
+    }
+}
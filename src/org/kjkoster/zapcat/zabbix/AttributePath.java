@@ -0,0 +1,280 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.InvalidKeyException;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularType;
+
+import org.kjkoster.zapcat.util.AttributeFormater;
+
+/**
+ * A parsed attribute path, such as <code>HeapMemoryUsage.used</code>. The
+ * first segment names the mbean attribute, each further segment steps into
+ * the value that we have so far:
+ * <ul>
+ * <li>into a field of composite data, by field name;</li>
+ * <li>into a row of tabular data, by the value of its index. Tables that an
+ * MXBean made out of a map (rows of just "key" and "value") step straight to
+ * the value, so <code>SystemProperties.java\.version</code> gives the Java
+ * version and <code>LastGcInfo.memoryUsageAfterGc.G1 Eden Space.used</code>
+ * the usage of that pool;</li>
+ * <li>into an element of an array or list, by index;</li>
+ * <li>into an entry of a map, by key.</li>
+ * </ul>
+ * Dots inside a segment are escaped with a backslash. Paths are parsed once
+ * and may be shared between threads.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+public final class AttributePath {
+    private final String path;
+
+    private final String attribute;
+
+    private final String[] segments;
+
+    // the segments as indexes, or -1 where they are not numbers
+    private final int[] indexes;
+
+    private AttributePath(final String path, final List<String> segments) {
+        this.path = path;
+        this.attribute = segments.get(0);
+        this.segments = segments.subList(1, segments.size()).toArray(
+                new String[segments.size() - 1]);
+        this.indexes = new int[this.segments.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = index(this.segments[i]);
+        }
+    }
+
+    /**
+     * Parse an attribute path.
+     *
+     * @param path
+     *            The path, with segments separated by dots.
+     * @return The parsed path.
+     * @throws IllegalArgumentException
+     *             When the path has empty segments.
+     */
+    public static AttributePath compile(final String path) {
+        final List<String> segments = new ArrayList<String>();
+        final StringBuilder segment = new StringBuilder();
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i);
+            if (c == '\\' && i + 1 < path.length()) {
+                segment.append(path.charAt(++i));
+            } else if (c == '.') {
+                segments.add(segment.toString());
+                segment.setLength(0);
+            } else {
+                segment.append(c);
+            }
+        }
+        segments.add(segment.toString());
+
+        for (final String s : segments) {
+            if (s.length() == 0) {
+                throw new IllegalArgumentException("empty segment in path '"
+                        + path + "'");
+            }
+        }
+        return new AttributePath(path, segments);
+    }
+
+    private static int index(final String segment) {
+        if (segment.length() > 9) {
+            return -1;
+        }
+        for (int i = 0; i < segment.length(); i++) {
+            if (segment.charAt(i) < '0' || segment.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return Integer.parseInt(segment);
+    }
+
+    /**
+     * The name of the mbean attribute that this path starts at.
+     *
+     * @return The attribute name.
+     */
+    public String getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * Follow the path into the value of the attribute and format what we find
+     * there.
+     *
+     * @param value
+     *            The value of the attribute.
+     * @return The formatted value that the path points to.
+     * @throws IllegalArgumentException
+     *             When the path leads nowhere.
+     * @throws InvalidKeyException
+     *             When a field, row or entry does not exist.
+     */
+    public String resolve(final Object value) {
+        return AttributeFormater.format(navigate(value));
+    }
+
+    /**
+     * Follow the path into the value of the attribute.
+     *
+     * @param value
+     *            The value of the attribute.
+     * @return The value that the path points to, unformatted.
+     * @throws IllegalArgumentException
+     *             When the path leads nowhere.
+     * @throws InvalidKeyException
+     *             When a field, row or entry does not exist.
+     */
+    public Object navigate(final Object value) {
+        Object current = value;
+        for (int i = 0; i < segments.length; i++) {
+            current = step(current, segments[i], indexes[i]);
+        }
+        return current;
+    }
+
+    private Object step(final Object value, final String segment,
+            final int index) {
+        if (value instanceof CompositeData) {
+            return ((CompositeData) value).get(segment);
+        }
+        if (value instanceof TabularData) {
+            return row((TabularData) value, segment);
+        }
+        if (value instanceof Map<?, ?>) {
+            return entry((Map<?, ?>) value, segment);
+        }
+        if (value instanceof List<?>) {
+            final List<?> list = (List<?>) value;
+            if (index < 0 || index >= list.size()) {
+                throw new InvalidKeyException("no element " + segment
+                        + " in " + path);
+            }
+            return list.get(index);
+        }
+        if (value != null && value.getClass().isArray()) {
+            if (index < 0 || index >= Array.getLength(value)) {
+                throw new InvalidKeyException("no element " + segment
+                        + " in " + path);
+            }
+            return Array.get(value, index);
+        }
+
+        throw new IllegalArgumentException("cannot look up " + segment
+                + " in " + (value == null ? "null" : value.getClass().getName())
+                + " for " + path);
+    }
+
+    private Object row(final TabularData table, final String segment) {
+        final TabularType type = table.getTabularType();
+        final List<String> indexNames = type.getIndexNames();
+        if (indexNames.size() != 1) {
+            throw new IllegalArgumentException("cannot look up " + segment
+                    + " in a table with " + indexNames.size()
+                    + " index columns for " + path);
+        }
+
+        final CompositeType rowType = type.getRowType();
+        final Object key = convert(segment, rowType.getType(indexNames.get(0))
+                .getClassName());
+        final CompositeData row = key == null ? null : table
+                .get(new Object[] { key });
+        if (row == null) {
+            throw new InvalidKeyException("no row " + segment + " in " + path);
+        }
+
+        // MXBeans turn maps into tables of key and value
+        if (rowType.keySet().size() == 2 && rowType.containsKey("key")
+                && rowType.containsKey("value")) {
+            return row.get("value");
+        }
+        return row;
+    }
+
+    private static Object convert(final String segment, final String type) {
+        try {
+            if (String.class.getName().equals(type)) {
+                return segment;
+            } else if (Integer.class.getName().equals(type)) {
+                return Integer.valueOf(segment);
+            } else if (Long.class.getName().equals(type)) {
+                return Long.valueOf(segment);
+            } else if (Short.class.getName().equals(type)) {
+                return Short.valueOf(segment);
+            } else if (Byte.class.getName().equals(type)) {
+                return Byte.valueOf(segment);
+            } else if (Boolean.class.getName().equals(type)) {
+                return Boolean.valueOf(segment);
+            } else if (Character.class.getName().equals(type)) {
+                return segment.length() == 1 ? Character.valueOf(segment
+                        .charAt(0)) : null;
+            } else if (Double.class.getName().equals(type)) {
+                return Double.valueOf(segment);
+            } else if (Float.class.getName().equals(type)) {
+                return Float.valueOf(segment);
+            } else if (BigInteger.class.getName().equals(type)) {
+                return new BigInteger(segment);
+            } else if (BigDecimal.class.getName().equals(type)) {
+                return new BigDecimal(segment);
+            }
+        } catch (NumberFormatException e) {
+            // no row can have this key
+        }
+        return null;
+    }
+
+    private Object entry(final Map<?, ?> map, final String segment) {
+        try {
+            if (map.containsKey(segment)) {
+                return map.get(segment);
+            }
+        } catch (ClassCastException e) {
+            // a sorted map with keys of some other type
+        }
+
+        // keys that are not strings are matched on their string form
+        for (final Map.Entry<?, ?> entry : map.entrySet()) {
+            if (entry.getKey() != null
+                    && segment.equals(entry.getKey().toString())) {
+                return entry.getValue();
+            }
+        }
+        throw new InvalidKeyException("no entry " + segment + " in " + path);
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,292 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps track of mbeans that blow their time budget. An mbean that misses its
+ * deadline a number of times in a row is tripped: for a cool-down period all
+ * queries against it fail fast, without touching the mbean. After the
+ * cool-down, a single query is let through as a trial. If that one makes its
+ * deadline the mbean is back in business, otherwise it is tripped again.
+ * <p>
+ * Only mbeans that missed a deadline are tracked, so the common case is a
+ * single map lookup.
+ * <p>
+ * The breaker also counts the queries that missed their deadline and are
+ * still running, tying up the thread that runs them.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class CircuitBreaker {
+    private static final Logger log = Logger.getLogger(CircuitBreaker.class);
+
+    private final int threshold;
+
+    private final long coolDown;
+
+    private final ConcurrentHashMap<ObjectName, State> states = new ConcurrentHashMap<ObjectName, State>();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong trips = new AtomicLong();
+
+    private final AtomicLong fastFails = new AtomicLong();
+
+    private final AtomicInteger stuck = new AtomicInteger();
+
+    /**
+     * Create a new circuit breaker.
+     *
+     * @param threshold
+     *            The number of missed deadlines in a row that trips an mbean.
+     * @param coolDown
+     *            The number of milliseconds that a tripped mbean is left
+     *            alone.
+     */
+    CircuitBreaker(final int threshold, final long coolDown) {
+        this.threshold = threshold;
+        this.coolDown = TimeUnit.MILLISECONDS.toNanos(coolDown);
+    }
+
+    /**
+     * Check whether we may query an mbean.
+     *
+     * @param objectName
+     *            The mbean (or pattern) to query.
+     * @return <code>false</code> if the mbean is tripped and the query should
+     *         fail fast.
+     */
+    boolean allow(final ObjectName objectName) {
+        final State state = states.get(objectName);
+        if (state == null || state.openUntil == 0L) {
+            return true;
+        }
+
+        if (state.openUntil - System.nanoTime() > 0L
+                || !state.trial.compareAndSet(false, true)) {
+            fastFails.incrementAndGet();
+            return false;
+        }
+
+        log.debug("letting a trial query through to " + objectName);
+        return true;
+    }
+
+    /**
+     * Note that a query made its deadline.
+     *
+     * @param objectName
+     *            The mbean (or pattern) that was queried.
+     */
+    void success(final ObjectName objectName) {
+        if (!states.isEmpty() && states.remove(objectName) != null) {
+            log.info(objectName + " is responsive again");
+        }
+    }
+
+    /**
+     * Note that a query that was allowed never ran, so that a trial slot is
+     * not lost.
+     *
+     * @param objectName
+     *            The mbean (or pattern) that was to be queried.
+     */
+    void abandon(final ObjectName objectName) {
+        final State state = states.get(objectName);
+        if (state != null) {
+            state.trial.set(false);
+        }
+    }
+
+    /**
+     * Note that a query missed its deadline.
+     *
+     * @param objectName
+     *            The mbean (or pattern) that was queried.
+     */
+    void timeout(final ObjectName objectName) {
+        timeouts.incrementAndGet();
+
+        State state = states.get(objectName);
+        if (state == null) {
+            state = new State();
+            final State raced = states.putIfAbsent(objectName,
+                    state);
+            if (raced != null) {
+                state = raced;
+            }
+        }
+
+        if (state.trial.get() || state.failures.incrementAndGet() >= threshold) {
+            state.openUntil = System.nanoTime() + coolDown;
+            state.trips.incrementAndGet();
+            state.trial.set(false);
+            trips.incrementAndGet();
+            log.warn(objectName + " keeps missing its deadline, failing fast for "
+                    + TimeUnit.NANOSECONDS.toMillis(coolDown) + " ms");
+        }
+    }
+
+    /**
+     * Note that a query that missed its deadline is still running.
+     */
+    void stuck() {
+        stuck.incrementAndGet();
+    }
+
+    /**
+     * Note that a query that missed its deadline finally finished.
+     */
+    void unstuck() {
+        stuck.decrementAndGet();
+    }
+
+    /**
+     * The state of one slow mbean.
+     */
+    private static final class State {
+        final AtomicInteger failures = new AtomicInteger();
+
+        final AtomicLong trips = new AtomicLong();
+
+        final AtomicBoolean trial = new AtomicBoolean();
+
+        // zero while closed
+        volatile long openUntil = 0L;
+    }
+
+    /**
+     * The interface to our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public interface StatisticsMBean {
+        /**
+         * Read the number of queries that missed their deadline.
+         *
+         * @return The number of timeouts.
+         */
+        long getTimeouts();
+
+        /**
+         * Read the number of times an mbean was tripped.
+         *
+         * @return The number of trips.
+         */
+        long getTrips();
+
+        /**
+         * Read the number of queries that failed fast because their mbean was
+         * tripped.
+         *
+         * @return The number of fast failures.
+         */
+        long getFastFails();
+
+        /**
+         * Read the number of queries that missed their deadline and are
+         * still running.
+         *
+         * @return The number of stuck queries.
+         */
+        int getStuck();
+
+        /**
+         * List the mbeans that recently missed deadlines, in the format
+         * &lt;object name&gt; (&lt;trips&gt; trips, open|closed).
+         *
+         * @return The slow mbeans.
+         */
+        Collection<String> getSlowMBeans();
+
+        /**
+         * Forget about all slow mbeans, closing all breakers.
+         */
+        void reset();
+    }
+
+    /**
+     * Our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public class Statistics implements StatisticsMBean {
+        /**
+         * @see org.kjkoster.zapcat.zabbix.CircuitBreaker.StatisticsMBean#getTimeouts()
+         */
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.CircuitBreaker.StatisticsMBean#getTrips()
+         */
+        public long getTrips() {
+            return trips.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.CircuitBreaker.StatisticsMBean#getFastFails()
+         */
+        public long getFastFails() {
+            return fastFails.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.CircuitBreaker.StatisticsMBean#getStuck()
+         */
+        public int getStuck() {
+            return stuck.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.CircuitBreaker.StatisticsMBean#getSlowMBeans()
+         */
+        public Collection<String> getSlowMBeans() {
+            final long now = System.nanoTime();
+            final Collection<String> slow = new ArrayList<String>();
+            for (final Map.Entry<ObjectName, State> entry : states.entrySet()) {
+                final State state = entry.getValue();
+                final boolean open = state.openUntil != 0L
+                        && state.openUntil - now > 0L;
+                slow.add(entry.getKey() + " (" + state.trips.get()
+                        + " trips, " + (open ? "open" : "closed") + ")");
+            }
+            return slow;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.CircuitBreaker.StatisticsMBean#reset()
+         */
+        public void reset() {
+            states.clear();
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Folds values that are trapped over and over for the same key into one item
+ * per flush interval. Gauge keys keep only the latest value. Counter keys add
+ * up the values trapped during the interval and send the sum. Keys that are
+ * neither pass straight through to the queue.
+ * <p>
+ * Each host and key gets a cell the first time it is trapped. Whether a key is
+ * a gauge or a counter is decided when its cell is made, so trapping a value
+ * costs two map lookups and, for gauges, a short lock on the cell. Cells are
+ * never removed; once there are as many as the configured maximum, new keys
+ * pass through.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class Coalescer {
+    private static final int PASS = 0;
+
+    private static final int GAUGE = 1;
+
+    private static final int COUNTER = 2;
+
+    private static final int LONG = 0;
+
+    private static final int DOUBLE = 1;
+
+    private static final int STRING = 2;
+
+    private final SenderPool pool;
+
+    private final long interval;
+
+    private final Pattern gauges;
+
+    private final Pattern counters;
+
+    private final int maxKeys;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Cell>> hosts = new ConcurrentHashMap<String, ConcurrentMap<String, Cell>>();
+
+    private final AtomicInteger keys = new AtomicInteger();
+
+    private final AtomicLong received = new AtomicLong();
+
+    private final AtomicLong flushed = new AtomicLong();
+
+    /**
+     * Create a new coalescer.
+     *
+     * @param pool
+     *            The senders to flush to.
+     * @param interval
+     *            The number of milliseconds between two flushes, for
+     *            reporting only.
+     * @param gauges
+     *            The semicolon separated patterns of gauge keys, where
+     *            <code>*</code> matches anything.
+     * @param counters
+     *            The semicolon separated patterns of counter keys. Counters
+     *            win over gauges.
+     * @param maxKeys
+     *            The maximum number of keys to keep cells for.
+     */
+    Coalescer(final SenderPool pool, final long interval, final String gauges,
+            final String counters, final int maxKeys) {
+        this.pool = pool;
+        this.interval = interval;
+        this.gauges = compile(gauges);
+        this.counters = compile(counters);
+        this.maxKeys = maxKeys;
+    }
+
+    private static Pattern compile(final String globs) {
+        if (globs == null) {
+            return null;
+        }
+
+        final StringBuilder regex = new StringBuilder();
+        for (final String glob : globs.split(";")) {
+            if (glob.trim().length() == 0) {
+                continue;
+            }
+
+            regex.append(regex.length() == 0 ? "" : "|");
+            final String[] parts = glob.trim().split("\\*", -1);
+            for (int i = 0; i < parts.length; i++) {
+                regex.append(i == 0 ? "" : ".*");
+                if (parts[i].length() > 0) {
+                    regex.append(Pattern.quote(parts[i]));
+                }
+            }
+        }
+        return regex.length() == 0 ? null : Pattern.compile(regex.toString());
+    }
+
+    private int classify(final String key) {
+        if (counters != null && counters.matcher(key).matches()) {
+            return COUNTER;
+        }
+        if (gauges != null && gauges.matcher(key).matches()) {
+            return GAUGE;
+        }
+        return PASS;
+    }
+
+    private Cell cell(final String host, final String key) {
+        ConcurrentMap<String, Cell> cells = hosts.get(host);
+        if (cells == null) {
+            cells = new ConcurrentHashMap<String, Cell>();
+            final ConcurrentMap<String, Cell> existing = hosts.putIfAbsent(
+                    host, cells);
+            if (existing != null) {
+                cells = existing;
+            }
+        }
+
+        Cell cell = cells.get(key);
+        if (cell == null) {
+            if (keys.get() >= maxKeys) {
+                return null;
+            }
+            cell = new Cell(host, key, classify(key));
+            final Cell existing = cells.putIfAbsent(key, cell);
+            if (existing == null) {
+                keys.incrementAndGet();
+            } else {
+                cell = existing;
+            }
+        }
+        return cell;
+    }
+
+    /**
+     * Fold a value into the cell for its key.
+     *
+     * @param host
+     *            The host configuration of the item.
+     * @param key
+     *            The key of the item.
+     * @param value
+     *            The value.
+     * @return <code>true</code> if the value was folded in,
+     *         <code>false</code> if it should be queued as it is.
+     */
+    boolean offer(final String host, final String key, final Object value) {
+        if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            return offer(host, key, ((Number) value).longValue());
+        }
+        if (value instanceof Double) {
+            return offer(host, key, ((Double) value).doubleValue());
+        }
+        if (value instanceof Float) {
+            // widening would add digits that the float never had
+            return offer(host, key, Double.parseDouble(value.toString()));
+        }
+
+        final Cell cell = host == null ? null : cell(host, key);
+        if (cell == null || cell.type != GAUGE) {
+            return false;
+        }
+        cell.set(STRING, 0L, value.toString());
+        received.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Fold a whole number into the cell for its key.
+     *
+     * @param host
+     *            The host configuration of the item.
+     * @param key
+     *            The key of the item.
+     * @param value
+     *            The value.
+     * @return <code>true</code> if the value was folded in,
+     *         <code>false</code> if it should be queued as it is.
+     */
+    boolean offer(final String host, final String key, final long value) {
+        final Cell cell = host == null ? null : cell(host, key);
+        if (cell == null || cell.type == PASS) {
+            return false;
+        }
+        if (cell.type == GAUGE) {
+            cell.set(LONG, value, null);
+        } else {
+            cell.longs.addAndGet(value);
+            cell.touched.set(true);
+        }
+        received.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Fold a number into the cell for its key.
+     *
+     * @param host
+     *            The host configuration of the item.
+     * @param key
+     *            The key of the item.
+     * @param value
+     *            The value.
+     * @return <code>true</code> if the value was folded in,
+     *         <code>false</code> if it should be queued as it is.
+     */
+    boolean offer(final String host, final String key, final double value) {
+        final Cell cell = host == null ? null : cell(host, key);
+        if (cell == null || cell.type == PASS) {
+            return false;
+        }
+        if (cell.type == GAUGE) {
+            cell.set(DOUBLE, Double.doubleToRawLongBits(value), null);
+        } else {
+            cell.fractional = true;
+            for (;;) {
+                final long bits = cell.doubles.get();
+                if (cell.doubles.compareAndSet(bits, Double
+                        .doubleToRawLongBits(Double.longBitsToDouble(bits)
+                                + value))) {
+                    break;
+                }
+            }
+            cell.touched.set(true);
+        }
+        received.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Queue one item for each key that was trapped since the last flush.
+     */
+    void flush() {
+        for (final ConcurrentMap<String, Cell> cells : hosts.values()) {
+            for (final Cell cell : cells.values()) {
+                if (cell.type == GAUGE) {
+                    flushGauge(cell);
+                } else if (cell.type == COUNTER) {
+                    flushCounter(cell);
+                }
+            }
+        }
+    }
+
+    private void flushGauge(final Cell cell) {
+        final int kind;
+        final long number;
+        final String value;
+        synchronized (cell) {
+            if (!cell.dirty) {
+                return;
+            }
+            kind = cell.kind;
+            number = cell.number;
+            value = cell.value;
+            cell.dirty = false;
+            cell.value = null;
+        }
+
+        final TrapQueue queue = pool.route(cell.host, cell.key);
+        if (kind == LONG) {
+            queue.offer(cell.host, cell.key, number);
+        } else if (kind == DOUBLE) {
+            queue.offer(cell.host, cell.key, Double.longBitsToDouble(number));
+        } else {
+            queue.offer(cell.host, cell.key, value);
+        }
+        flushed.incrementAndGet();
+    }
+
+    private void flushCounter(final Cell cell) {
+        // clear the flag first, so that a value added while we flush is
+        // either in this sum or flagged for the next one
+        if (!cell.touched.getAndSet(false)) {
+            return;
+        }
+
+        final long longs = cell.longs.getAndSet(0L);
+        final TrapQueue queue = pool.route(cell.host, cell.key);
+        if (cell.fractional) {
+            queue.offer(cell.host, cell.key, longs
+                    + Double.longBitsToDouble(cell.doubles.getAndSet(0L)));
+        } else {
+            queue.offer(cell.host, cell.key, longs);
+        }
+        flushed.incrementAndGet();
+    }
+
+    /**
+     * The state of one host and key.
+     */
+    private static final class Cell {
+        final String host;
+
+        final String key;
+
+        final int type;
+
+        // gauges, guarded by this
+        boolean dirty;
+
+        int kind;
+
+        long number;
+
+        String value;
+
+        // counters, once fractional they are always sent as doubles
+        final AtomicBoolean touched = new AtomicBoolean();
+
+        final AtomicLong longs = new AtomicLong();
+
+        final AtomicLong doubles = new AtomicLong();
+
+        volatile boolean fractional;
+
+        Cell(final String host, final String key, final int type) {
+            this.host = host;
+            this.key = key;
+            this.type = type;
+        }
+
+        synchronized void set(final int kind, final long number,
+                final String value) {
+            this.kind = kind;
+            this.number = number;
+            this.value = value;
+            dirty = true;
+        }
+    }
+
+    /**
+     * The interface to our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public interface StatisticsMBean {
+        /**
+         * Read the number of values that were folded into a cell.
+         *
+         * @return The number of values received.
+         */
+        long getReceived();
+
+        /**
+         * Read the number of items that were queued by flushes.
+         *
+         * @return The number of items flushed.
+         */
+        long getFlushed();
+
+        /**
+         * Read the number of keys that have a cell.
+         *
+         * @return The number of keys.
+         */
+        int getKeys();
+
+        /**
+         * Read the number of milliseconds between two flushes.
+         *
+         * @return The flush interval.
+         */
+        long getInterval();
+    }
+
+    /**
+     * Our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public class Statistics implements StatisticsMBean {
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Coalescer.StatisticsMBean#getReceived()
+         */
+        public long getReceived() {
+            return received.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Coalescer.StatisticsMBean#getFlushed()
+         */
+        public long getFlushed() {
+            return flushed.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Coalescer.StatisticsMBean#getKeys()
+         */
+        public int getKeys() {
+            return keys.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Coalescer.StatisticsMBean#getInterval()
+         */
+        public long getInterval() {
+            return interval;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.PlatformManagedObject;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMX;
+import javax.management.MBeanException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.RuntimeErrorException;
+import javax.management.RuntimeMBeanException;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Reads attributes straight from the object behind an mbean, skipping the
+ * mbean server's registry lookup, interceptors and <code>MBeanInfo</code>
+ * driven dispatch. Each (object name, attribute) pair is bound once to a
+ * method handle on the getter of the implementation.
+ * <p>
+ * We only do this where we know exactly what the mbean server would have
+ * done: for the platform MXBeans of this JVM and for standard mbeans that were
+ * registered through {@link JMXHelper#register(Object, String)}, and only for
+ * getters that return primitives, their wrappers or strings. MXBean getters
+ * that return, say, a <code>MemoryUsage</code> would come back as
+ * <code>CompositeData</code> through the mbean server, so those go through the
+ * mbean server, as does everything else. Nothing is bound when a security
+ * manager is installed, since the mbean server would check permissions.
+ * <p>
+ * When a getter throws, the exception is wrapped the way the mbean server
+ * would have wrapped it. The getter is not called a second time.
+ * <p>
+ * Bindings for an mbean are dropped when it is unregistered.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class DirectAccessors {
+    private static final Logger log = Logger.getLogger(DirectAccessors.class);
+
+    private static final Set<Class<?>> SIMPLE_TYPES = new HashSet<Class<?>>(
+            Arrays.<Class<?>> asList(boolean.class, Boolean.class,
+                    byte.class, Byte.class, short.class, Short.class,
+                    int.class, Integer.class, long.class, Long.class,
+                    float.class, Float.class, double.class, Double.class,
+                    char.class, Character.class, String.class));
+
+    private static final MethodType GETTER = MethodType
+            .methodType(Object.class);
+
+    // marks pairs that have to go through the mbean server
+    private static final Binding NONE = new Binding(null, null);
+
+    // we remember bindings, but not for an unbounded number of pairs
+    private static final int MAX_BINDINGS = 10000;
+
+    private final boolean enabled;
+
+    private final Map<ObjectName, Registration> registered = new ConcurrentHashMap<ObjectName, Registration>();
+
+    private final ConcurrentMap<ObjectName, Map<String, Binding>> bindings = new ConcurrentHashMap<ObjectName, Map<String, Binding>>();
+
+    // roughly the number of pairs in the bindings
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final Set<MBeanServer> listening = new HashSet<MBeanServer>();
+
+    private volatile Map<ObjectName, Registration> platform;
+
+    private final NotificationListener listener = new NotificationListener() {
+        public void handleNotification(final Notification notification,
+                final Object handback) {
+            if (notification instanceof MBeanServerNotification) {
+                final ObjectName name = ((MBeanServerNotification) notification)
+                        .getMBeanName();
+                registered.remove(name);
+                forget(name);
+
+                // a platform mbean may have been swapped out
+                final Map<ObjectName, Registration> known = platform;
+                if (known != null && known.containsKey(name)) {
+                    platform = null;
+                }
+            }
+        }
+    };
+
+    /**
+     * Create a new set of accessors.
+     *
+     * @param enabled
+     *            <code>false</code> to always go through the mbean server.
+     */
+    DirectAccessors(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Read an attribute.
+     *
+     * @param server
+     *            The mbean server that the mbean is registered with.
+     * @param objectName
+     *            The mbean to read.
+     * @param attribute
+     *            The name of the attribute.
+     * @return The value of the attribute, as the mbean server would have
+     *         returned it.
+     * @throws InstanceNotFoundException
+     *             When the specified mbean could not be located.
+     * @throws ReflectionException
+     *             When there was a problem inspecting the mbean.
+     * @throws MBeanException
+     *             When there was a problem inspecting the mbean.
+     * @throws AttributeNotFoundException
+     *             When the specified attribute could not be found.
+     */
+    Object getAttribute(final MBeanServer server, final ObjectName objectName,
+            final String attribute) throws InstanceNotFoundException,
+            AttributeNotFoundException, MBeanException, ReflectionException {
+        if (enabled) {
+            final Map<String, Binding> attributes = bindings.get(objectName);
+            Binding binding = attributes == null ? null : attributes
+                    .get(attribute);
+            if (binding == null || binding != NONE && binding.server != server) {
+                binding = bind(server, objectName, attribute);
+                remember(objectName, attribute, binding);
+            }
+
+            if (binding.handle != null) {
+                return read(binding, objectName, attribute);
+            }
+        }
+
+        return server.getAttribute(objectName, attribute);
+    }
+
+    /*
+     * Call a bound getter, wrapping what it throws the way the mbean server
+     * would have.
+     */
+    private static Object read(final Binding binding,
+            final ObjectName objectName, final String attribute)
+            throws MBeanException {
+        try {
+            return binding.handle.invoke();
+        } catch (RuntimeException e) {
+            throw new RuntimeMBeanException(e, message(objectName, attribute,
+                    e));
+        } catch (Error e) {
+            throw new RuntimeErrorException(e,
+                    message(objectName, attribute, e));
+        } catch (Exception e) {
+            throw new MBeanException(e, message(objectName, attribute, e));
+        } catch (Throwable e) {
+            // neither an error nor an exception, but we have to say something
+            throw new RuntimeErrorException(new Error(e), message(objectName,
+                    attribute, e));
+        }
+    }
+
+    private static String message(final ObjectName objectName,
+            final String attribute, final Throwable e) {
+        return e.getClass().getName() + " thrown in the getter for "
+                + attribute + " on " + objectName;
+    }
+
+    private void remember(final ObjectName objectName,
+            final String attribute, final Binding binding) {
+        if (size.get() >= MAX_BINDINGS) {
+            bindings.clear();
+            size.set(0);
+        }
+
+        Map<String, Binding> attributes = bindings.get(objectName);
+        if (attributes == null) {
+            attributes = new ConcurrentHashMap<String, Binding>();
+            final Map<String, Binding> raced = bindings.putIfAbsent(
+                    objectName, attributes);
+            if (raced != null) {
+                attributes = raced;
+            }
+        }
+        if (attributes.put(attribute, binding) == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Note that a standard mbean was registered.
+     *
+     * @param server
+     *            The mbean server that the mbean was registered with.
+     * @param objectName
+     *            The name of the mbean.
+     * @param mbean
+     *            The mbean.
+     */
+    void registered(final MBeanServer server, final ObjectName objectName,
+            final Object mbean) {
+        if (enabled) {
+            registered.put(objectName, new Registration(server, mbean,
+                    standardInterface(mbean.getClass())));
+        }
+    }
+
+    /**
+     * Note that an mbean was unregistered.
+     *
+     * @param objectName
+     *            The name of the mbean.
+     */
+    void unregistered(final ObjectName objectName) {
+        registered.remove(objectName);
+        forget(objectName);
+    }
+
+    private Binding bind(final MBeanServer server, final ObjectName objectName,
+            final String attribute) {
+        if (isSecured()) {
+            return NONE;
+        }
+
+        Registration registration = registered.get(objectName);
+        if (registration == null
+                && server == ManagementFactory.getPlatformMBeanServer()) {
+            registration = platform().get(objectName);
+        }
+        if (registration == null || registration.server != server
+                || registration.type == null) {
+            return NONE;
+        }
+
+        final Method getter = getter(registration.type, attribute);
+        if (getter == null) {
+            return NONE;
+        }
+
+        try {
+            final MethodHandle handle = MethodHandles.publicLookup()
+                    .unreflect(getter).bindTo(registration.mbean).asType(
+                            GETTER);
+            listen(server);
+            if (log.isDebugEnabled()) {
+                log.debug("bound " + objectName + " " + attribute + " to "
+                        + getter);
+            }
+            return new Binding(server, handle);
+        } catch (IllegalAccessException e) {
+            log.debug("unable to bind " + getter, e);
+            return NONE;
+        }
+    }
+
+    /*
+     * With a security manager, the mbean server checks permissions on every
+     * read, and calling the getter ourselves would skip those checks. Security
+     * managers are deprecated for removal, but as long as the JVM lets one be
+     * installed we have to honour it, hence the suppressed warning.
+     */
+    @SuppressWarnings("removal")
+    private static boolean isSecured() {
+        return System.getSecurityManager() != null;
+    }
+
+    private static Method getter(final Class<?> type, final String attribute) {
+        for (final String prefix : new String[] { "get", "is" }) {
+            try {
+                final Method getter = type.getMethod(prefix + attribute);
+                if (SIMPLE_TYPES.contains(getter.getReturnType())
+                        && ("get".equals(prefix) || getter.getReturnType() == boolean.class)) {
+                    return getter;
+                }
+            } catch (NoSuchMethodException e) {
+                // try the next prefix
+            }
+        }
+        return null;
+    }
+
+    /*
+     * The interface that the mbean server would have introspected, or null if
+     * this is not a plain standard mbean.
+     */
+    private static Class<?> standardInterface(final Class<?> clazz) {
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            for (final Class<?> candidate : c.getInterfaces()) {
+                if (candidate.getName().equals(c.getName() + "MBean")) {
+                    return Modifier.isPublic(candidate.getModifiers())
+                            && !JMX.isMXBeanInterface(candidate) ? candidate
+                            : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Map the platform MXBeans by name. Where several management interfaces
+     * lead to the same object, we keep the most specific one.
+     */
+    private Map<ObjectName, Registration> platform() {
+        Map<ObjectName, Registration> found = platform;
+        if (found != null) {
+            return found;
+        }
+
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        found = new HashMap<ObjectName, Registration>();
+        for (final Class<? extends PlatformManagedObject> type : ManagementFactory
+                .getPlatformManagementInterfaces()) {
+            if (!Modifier.isPublic(type.getModifiers())) {
+                continue;
+            }
+            try {
+                for (final PlatformManagedObject mxbean : ManagementFactory
+                        .getPlatformMXBeans(type)) {
+                    final ObjectName name = mxbean.getObjectName();
+                    final Registration known = found.get(name);
+                    if (known == null || known.type.isAssignableFrom(type)) {
+                        found.put(name, new Registration(server, mxbean, type));
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.debug("unable to list platform mbeans of " + type, e);
+            }
+        }
+
+        platform = found;
+        return found;
+    }
+
+    private void listen(final MBeanServer server) {
+        synchronized (listening) {
+            if (listening.contains(server)) {
+                return;
+            }
+
+            final MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+            filter.enableAllObjectNames();
+            filter.disableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+            try {
+                server.addNotificationListener(
+                        MBeanServerDelegate.DELEGATE_NAME, listener, filter,
+                        null);
+                listening.add(server);
+            } catch (InstanceNotFoundException e) {
+                // cannot happen, every mbean server has a delegate
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private void forget(final ObjectName objectName) {
+        final Map<String, Binding> attributes = bindings.remove(objectName);
+        if (attributes != null) {
+            size.addAndGet(-attributes.size());
+        }
+    }
+
+    /**
+     * An mbean and the interface that the mbean server sees.
+     */
+    private static final class Registration {
+        final MBeanServer server;
+
+        final Object mbean;
+
+        // null if we cannot read this mbean directly
+        final Class<?> type;
+
+        Registration(final MBeanServer server, final Object mbean,
+                final Class<?> type) {
+            this.server = server;
+            this.mbean = mbean;
+            this.type = type;
+        }
+    }
+
+    /**
+     * A bound getter.
+     */
+    private static final class Binding {
+        final MBeanServer server;
+
+        // null to go through the mbean server
+        final MethodHandle handle;
+
+        Binding(final MBeanServer server, final MethodHandle handle) {
+            this.server = server;
+            this.handle = handle;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * An incremental decoder for Zabbix agent queries. Zabbix 1.4 and later send a
+ * "ZBXD\1" header, followed by the length of the key as a 64 bit little endian
+ * integer and the key itself. Zabbix 1.1 and most scripts just send the key,
+ * terminated by a newline or by closing the connection.
+ * <p>
+ * The framing is detected from the first bytes of each query, so one agent
+ * serves both kinds of clients. Bytes are buffered and decoded as UTF-8 in one
+ * pass. Queries larger than the configured maximum are rejected.
+ * <p>
+ * Decoders are not thread safe. Use one per connection.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class FrameDecoder {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * The magic marker and protocol version that start a Zabbix 1.4 frame.
+     */
+    static final byte[] ZBXD = { 'Z', 'B', 'X', 'D', 0x01 };
+
+    /**
+     * The length of the marker plus the 8 byte length field.
+     */
+    static final int HEADER_LENGTH = ZBXD.length + 8;
+
+    private final int maxFrame;
+
+    private ByteBuffer in;
+
+    private boolean framed = false;
+
+    /**
+     * Create a new decoder.
+     *
+     * @param maxFrame
+     *            The largest query that we are willing to buffer, in bytes.
+     */
+    FrameDecoder(final int maxFrame) {
+        this.maxFrame = maxFrame;
+        // never hold more than a frame, or long bare lines slip through
+        this.in = ByteBuffer.allocate(Math.min(256, maxFrame));
+    }
+
+    /**
+     * Find the buffer to read the next bytes into. The buffer grows as
+     * needed, up to the maximum frame size.
+     *
+     * @return The buffer, with room for at least one more byte.
+     * @throws IOException
+     *             When the query is larger than the maximum frame size.
+     */
+    ByteBuffer buffer() throws IOException {
+        if (!in.hasRemaining()) {
+            if (in.capacity() >= maxFrame) {
+                throw new IOException("query larger than " + maxFrame
+                        + " bytes");
+            }
+
+            final ByteBuffer larger = ByteBuffer.allocate(Math.min(maxFrame,
+                    in.capacity() * 2));
+            in.flip();
+            larger.put(in);
+            in = larger;
+        }
+
+        return in;
+    }
+
+    /**
+     * Cut the next complete query out of the bytes that were read so far.
+     *
+     * @param eof
+     *            <code>true</code> if the peer closed the connection, which
+     *            terminates an unframed query.
+     * @return The query, or <code>null</code> if there is no complete query
+     *         yet.
+     * @throws IOException
+     *             When the frame header is invalid.
+     */
+    String next(final boolean eof) throws IOException {
+        final int available = in.position();
+        if (available == 0) {
+            return null;
+        }
+
+        final int prefix = Math.min(available, ZBXD.length);
+        if (matchesZbxd(prefix)) {
+            if (available < HEADER_LENGTH) {
+                if (eof) {
+                    throw new IOException("truncated frame header");
+                }
+                return null;
+            }
+
+            long length = 0L;
+            for (int i = HEADER_LENGTH - 1; i >= ZBXD.length; i--) {
+                length = (length << 8) | (in.get(i) & 0xff);
+            }
+            if (length < 0L || length > maxFrame - HEADER_LENGTH) {
+                throw new IOException("bad frame length " + length);
+            }
+            if (available < HEADER_LENGTH + length) {
+                if (eof) {
+                    throw new IOException("truncated frame");
+                }
+                return null;
+            }
+
+            framed = true;
+            int end = HEADER_LENGTH + (int) length;
+            final int consumed = end;
+            // zabbix_get from 1.4 still appends a newline
+            if (end > HEADER_LENGTH && in.get(end - 1) == '\n') {
+                end--;
+            }
+            return consume(HEADER_LENGTH, end, consumed);
+        }
+
+        for (int i = 0; i < available; i++) {
+            if (in.get(i) == '\n') {
+                framed = false;
+                return consume(0, i, i + 1);
+            }
+        }
+
+        if (eof) {
+            framed = false;
+            return consume(0, available, available);
+        }
+
+        return null;
+    }
+
+    /**
+     * Read the next query from a blocking stream.
+     *
+     * @param stream
+     *            The stream to read from.
+     * @return The query, or <code>null</code> if the peer closed the
+     *         connection before sending one.
+     * @throws IOException
+     *             When reading failed or the frame was invalid.
+     */
+    String read(final InputStream stream) throws IOException {
+        String query = next(false);
+        while (query == null) {
+            final ByteBuffer buffer = buffer();
+            final int read = stream.read(buffer.array(), buffer.position(),
+                    buffer.remaining());
+            if (read < 0) {
+                return next(true);
+            }
+            buffer.position(buffer.position() + read);
+
+            query = next(false);
+        }
+
+        return query;
+    }
+
+    /**
+     * See how the last query was framed, so that we can answer in kind.
+     *
+     * @return <code>true</code> if the last query had a Zabbix 1.4 header.
+     */
+    boolean isFramed() {
+        return framed;
+    }
+
+    private boolean matchesZbxd(final int length) {
+        for (int i = 0; i < length; i++) {
+            if (in.get(i) != ZBXD[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String consume(final int start, final int end, final int consumed) {
+        final String query = new String(in.array(), start, end - start, UTF8);
+
+        // shift any pipelined bytes to the front of the buffer
+        in.flip();
+        in.position(consumed);
+        in.compact();
+
+        return query;
+    }
+}
@@ -0,0 +1,157 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Encodes agent responses. The response is written as UTF-8 straight into a
+ * pooled buffer, leaving room for the Zabbix 1.4 header in front of it. Once
+ * the payload length is known the header is filled in, so that the whole frame
+ * goes out in a single write.
+ * <p>
+ * Buffers must be handed back through {@link #release(ByteBuffer)} once they
+ * have been written.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class FrameEncoder {
+    private static final int POOL_SIZE = 16;
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    // we don't keep buffers around that grew larger than this
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+    private static final AtomicReferenceArray<ByteBuffer> pool = new AtomicReferenceArray<ByteBuffer>(
+            POOL_SIZE);
+
+    private FrameEncoder() {
+        // static utility class
+    }
+
+    /**
+     * Encode a response.
+     *
+     * @param response
+     *            The response to encode.
+     * @param framed
+     *            <code>true</code> to add the Zabbix 1.4 header.
+     * @return A buffer ready to be written, holding the encoded frame.
+     */
+    static ByteBuffer encode(final String response, final boolean framed) {
+        final int header = framed ? FrameDecoder.HEADER_LENGTH : 0;
+        // three bytes per char is the most UTF-8 will ever need
+        final ByteBuffer buffer = acquire(header + 3 * response.length());
+        final byte[] bytes = buffer.array();
+
+        int at = header;
+        final int length = response.length();
+        for (int i = 0; i < length; i++) {
+            final char c = response.charAt(i);
+            if (c < 0x80) {
+                bytes[at++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[at++] = (byte) (0xc0 | (c >> 6));
+                bytes[at++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(response.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, response
+                        .charAt(++i));
+                bytes[at++] = (byte) (0xf0 | (codePoint >> 18));
+                bytes[at++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                bytes[at++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                bytes[at++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                bytes[at++] = (byte) '?';
+            } else {
+                bytes[at++] = (byte) (0xe0 | (c >> 12));
+                bytes[at++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[at++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        if (framed) {
+            System.arraycopy(FrameDecoder.ZBXD, 0, bytes, 0,
+                    FrameDecoder.ZBXD.length);
+            // length as 64 bit integer, little endian format
+            long payload = at - header;
+            for (int i = FrameDecoder.ZBXD.length; i < header; i++) {
+                bytes[i] = (byte) (payload & 0xff);
+                payload >>= 8;
+            }
+        }
+
+        buffer.limit(at);
+        return buffer;
+    }
+
+    /**
+     * Hand a buffer back to the pool.
+     *
+     * @param buffer
+     *            A buffer obtained from {@link #encode(String, boolean)}.
+     */
+    static void release(final ByteBuffer buffer) {
+        if (buffer.capacity() > MAX_POOLED_CAPACITY) {
+            return;
+        }
+
+        buffer.clear();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            if (pool.compareAndSet(i, null, buffer)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Format the bytes of an encoded frame, for debug logging.
+     *
+     * @param buffer
+     *            The encoded frame.
+     * @return The frame in hexadecimal notation.
+     */
+    static String hexdump(final ByteBuffer buffer) {
+        final StringBuilder hexdump = new StringBuilder(3 * buffer.remaining());
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            final String hex = Integer.toHexString(buffer.get(i) & 0xff);
+            if (hex.length() < 2) {
+                hexdump.append("0");
+            }
+            hexdump.append(hex).append(" ");
+        }
+        return hexdump.toString();
+    }
+
+    private static ByteBuffer acquire(final int capacity) {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            final ByteBuffer pooled = pool.getAndSet(i, null);
+            if (pooled != null) {
+                if (pooled.capacity() >= capacity) {
+                    return pooled;
+                }
+                // too small for this one, but someone else may use it
+                release(pooled);
+                break;
+            }
+        }
+
+        return ByteBuffer.allocate(Math.max(INITIAL_CAPACITY, capacity));
+    }
+}
@@ -43,6 +43,8 @@ final class Item {
 
     private final String attribute;
 
+    private final long clock;
+
     /**
      * Create a literal value item.
      * 
@@ -54,6 +56,24 @@ final class Item {
      *            The literal value.
      */
     public Item(final String host, final String key, final String value) {
+        this(host, key, value, System.currentTimeMillis());
+    }
+
+    /**
+     * Create a literal value item that was trapped at a given time.
+     * 
+     * @param host
+     *            The host configuration to send the item to.
+     * @param key
+     *            The monitoring server's key for this statistic.
+     * @param value
+     *            The literal value.
+     * @param clock
+     *            The time the item was trapped, in milliseconds since the
+     *            epoch.
+     */
+    public Item(final String host, final String key, final String value,
+            final long clock) {
         if (host == null || "".equals(host.trim())) {
             throw new IllegalArgumentException("empty host");
         }
@@ -70,6 +90,7 @@ final class Item {
         this.value = value;
         this.objectName = null;
         this.attribute = null;
+        this.clock = clock;
     }
 
     /**
@@ -86,6 +107,27 @@ final class Item {
      */
     public Item(final String host, final String key,
             final ObjectName objectName, final String attribute) {
+        this(host, key, objectName, attribute, System.currentTimeMillis());
+    }
+
+    /**
+     * Create a JMX query item that was trapped at a given time.
+     * 
+     * @param host
+     *            The host configuration to send the item to.
+     * @param key
+     *            The monitoring server's key for this statistic.
+     * @param objectName
+     *            The JMX object to query.
+     * @param attribute
+     *            The attribute on that object.
+     * @param clock
+     *            The time the item was trapped, in milliseconds since the
+     *            epoch.
+     */
+    public Item(final String host, final String key,
+            final ObjectName objectName, final String attribute,
+            final long clock) {
         if (key == null || "".equals(key.trim())) {
             throw new IllegalArgumentException("empty key");
         }
@@ -103,6 +145,7 @@ final class Item {
         this.value = null;
         this.objectName = objectName;
         this.attribute = attribute;
+        this.clock = clock;
     }
 
     /**
@@ -123,6 +166,42 @@ final class Item {
         return key;
     }
 
+    /**
+     * Find the time the item was trapped.
+     * 
+     * @return The time the item was trapped, in milliseconds since the epoch.
+     */
+    public long getClock() {
+        return clock;
+    }
+
+    /**
+     * Find the JMX object that a query item reads from.
+     * 
+     * @return The JMX object, or <code>null</code> for a literal item.
+     */
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * Find the attribute that a query item reads.
+     * 
+     * @return The attribute, or <code>null</code> for a literal item.
+     */
+    public String getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * Find the value of a literal item, without performing any query.
+     * 
+     * @return The literal value, or <code>null</code> for a JMX query item.
+     */
+    public String getLiteral() {
+        return value;
+    }
+
     /**
      * Determine the value for this item. If this is a literal item, return its
      * value. If this is a JMX query item, perform the query.
@@ -145,4 +224,29 @@ final class Item {
 
         return JMXHelper.query(java.lang.management.ManagementFactory.getPlatformMBeanServer(), objectName, attribute);
     }
+
+    /**
+     * Perform the JMX query, if any, and capture the result in a literal
+     * item.
+     * 
+     * @return This item if it is a literal item, or a literal item holding
+     *         the current value of a JMX query item.
+     * @throws InstanceNotFoundException
+     *             When the specified mbean could not be located.
+     * @throws ReflectionException
+     *             When there was a problem inspecting the mbean.
+     * @throws MBeanException
+     *             When there was a problem inspecting the mbean.
+     * @throws AttributeNotFoundException
+     *             When the specified attribute could not be found.
+     */
+    public Item resolve() throws InstanceNotFoundException,
+            AttributeNotFoundException, MBeanException, ReflectionException {
+        if (attribute == null) {
+            return this;
+        }
+
+        final String queried = getValue();
+        return new Item(host, key, queried == null ? "" : queried, clock);
+    }
 }
@@ -17,10 +17,8 @@ package org.kjkoster.zapcat.zabbix;
  */
 
 import org.apache.log4j.Logger;
-import org.kjkoster.zapcat.util.AttributeFormater;
 
 import javax.management.*;
-import javax.management.openmbean.CompositeData;
 import java.lang.management.ManagementFactory;
 import java.util.StringTokenizer;
 
@@ -34,6 +32,10 @@ public final class JMXHelper {
 
     private static MBeanServer mbeanserver = null;
 
+    private static final DirectAccessors accessors = new DirectAccessors(
+            Boolean.parseBoolean(System.getProperty(
+                    ZabbixAgent.DIRECT_PROPERTY, "true")));
+
     /**
      * Locate the mbean server for this JVM instance. We try to look for the
      * JBoss specific mbean server. Failing that, we just use the JVM's platorm
@@ -81,22 +83,69 @@ public final class JMXHelper {
             final ObjectName objectName,
             final String attribute)
     throws InstanceNotFoundException, AttributeNotFoundException, MBeanException, ReflectionException {
-        log.debug("JMX query[" + objectName + "][" + attribute + "]");
+        if (log.isDebugEnabled()) {
+            log.debug("JMX query[" + objectName + "][" + attribute + "]");
+        }
 
-        final ObjectInstance bean = mBeanServer.getObjectInstance(objectName);
-        log.debug("found MBean class " + bean.getClassName());
+        return query(mBeanServer, objectName, AttributePath.compile(attribute));
+    }
 
-        final int dot = attribute.indexOf('.');
-        if (dot < 0) {
-            final Object ret = mBeanServer.getAttribute(objectName, attribute);
-            return AttributeFormater.format(ret);
-        }
+    /**
+     * Perform a JMX query given an mbean name and an attribute path that was
+     * already parsed.
+     * 
+     * @param objectName
+     *            The object name of the mbean to query.
+     * @param path
+     *            The attribute path.
+     * @return The value of the attribute.
+     * @throws InstanceNotFoundException
+     *             When the specified mbean could not be located.
+     * @throws ReflectionException
+     *             When there was a problem inspecting the mbean.
+     * @throws MBeanException
+     *             When there was a problem inspecting the mbean.
+     * @throws AttributeNotFoundException
+     *             When the specified attribute could not be found.
+     */
+    public static String query(
+            final MBeanServer mBeanServer,
+            final ObjectName objectName,
+            final AttributePath path)
+    throws InstanceNotFoundException, AttributeNotFoundException, MBeanException, ReflectionException {
+        // getAttribute() throws InstanceNotFoundException for missing beans
+        return path.resolve(getAttribute(mBeanServer, objectName, path
+                .getAttribute()));
+    }
 
-        return resolveFields((CompositeData) mBeanServer.getAttribute(
-                objectName, attribute.substring(0, dot)), attribute
-                .substring(dot + 1));
+    /**
+     * Read an attribute. Where it is safe to do so, this bypasses the mbean
+     * server and calls the getter on the mbean directly.
+     * 
+     * @param mBeanServer
+     *            The mbean server that the mbean is registered with.
+     * @param objectName
+     *            The object name of the mbean to query.
+     * @param attribute
+     *            The attribute to query for.
+     * @return The value of the attribute, as the mbean server would have
+     *         returned it.
+     * @throws InstanceNotFoundException
+     *             When the specified mbean could not be located.
+     * @throws ReflectionException
+     *             When there was a problem inspecting the mbean.
+     * @throws MBeanException
+     *             When there was a problem inspecting the mbean.
+     * @throws AttributeNotFoundException
+     *             When the specified attribute could not be found.
+     */
+    public static Object getAttribute(final MBeanServer mBeanServer,
+            final ObjectName objectName, final String attribute)
+            throws InstanceNotFoundException, AttributeNotFoundException,
+            MBeanException, ReflectionException {
+        return accessors.getAttribute(mBeanServer, objectName, attribute);
     }
-    
+
     /**
      * Invoke a JMX operation by providing the mbean name, the operation name and arguments.
      * 
@@ -106,76 +155,35 @@ public final class JMXHelper {
      *            The operation to invoke.
      * @param query_args
      * 				The arguments to pass to the operation.
-     * @return A String representation of the object returned by invoking the operation.
+     * @return A String representation of the object returned by invoking the
+     *         operation, or <code>null</code> if it returned nothing.
      * 
      * @throws Exception
      *             UnsupportedOperationException
-     *             
-     * This is based on the patch submitted anonymously to the project page on sourceforge 
+     * @deprecated The agent answers jmx_op keys itself, with the signatures
+     *             cached. This delegates to the same code and will go away.
      */
-    public static String op_query(final String name, final String operation, final String query_args)
-    	throws Exception {
-    	
-    	final MBeanServer mbeanserver = getMBeanServer();
-    	log.debug("JMX op_query[" + name + "][" + operation + "]" + query_args.substring(1));
-    	
-    	final MBeanInfo info = mbeanserver.getMBeanInfo(new ObjectName(name));
-    	final MBeanOperationInfo[] ops = info.getOperations();
-    	StringTokenizer tokens = new StringTokenizer(query_args, "[],", false);
-    	
-    	int op_index = -1;
-    	boolean op_name_exist = false;
-    	MBeanParameterInfo[] sig = null;
-    	
-    	for (int i = 0; i < ops.length; i++) {
-    		if (ops[i].getName().equalsIgnoreCase(operation)) {
-    			op_name_exist = true;
-    			sig = ops[i].getSignature();
-    			if (sig.length == tokens.countTokens()) {
-    				op_index = i;
-    				break;
-    			}
-    		}
-    	}
-    	
-    	if (op_index == -1 && op_name_exist)
-    		throw new UnsupportedOperationException("Incorrect number of arguments.");
-    	else if (op_index == -1 && !op_name_exist)
-    		throw new UnsupportedOperationException("Operation not found in mbean.");
-    	
-    	String[] string_sig = new String[sig.length];
-    	Object[] obj_args = new Object[sig.length];
-
-		for (int j = 0; j < sig.length; j++) {
-			string_sig[j] = sig[j].getType();
-			if (string_sig[j].equals("long")) {
-				obj_args[j] = new Long(tokens.nextToken());
-			} else if (string_sig[j].equals("int")) {
-				obj_args[j] = new Integer(tokens.nextToken());
-			} else if (string_sig[j].equals("java.lang.String")) {
-				obj_args[j] = new String(tokens.nextToken());
-			} else if (string_sig[j].equals("boolean")) {
-				obj_args[j] = new Boolean(tokens.nextToken());
-			} else if (string_sig[j].equals("float")) {
-				obj_args[j] = new Float(tokens.nextToken());
-			} else if (string_sig[j].equals("double")) {
-				obj_args[j] = new Double(tokens.nextToken());
-			}
-		}
-		
-		return mbeanserver.invoke(new ObjectName(name), operation, obj_args,string_sig).toString();
-    }
+    @Deprecated
+    public static String op_query(final String name, final String operation,
+            final String query_args) throws Exception {
+        log.debug("JMX op_query[" + name + "][" + operation + "]" + query_args);
 
-    private static String resolveFields(final CompositeData attribute,
-            final String field) {
-        final int dot = field.indexOf('.');
-        if (dot < 0) {
-            final Object ret = attribute.get(field);
-            return ret == null ? null : ret.toString();
+        final StringTokenizer tokens = new StringTokenizer(query_args, "[],",
+                false);
+        final String[] arguments = new String[tokens.countTokens()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = tokens.nextToken();
         }
+        return Operations.cache.invoke(new ObjectName(name), operation,
+                arguments);
+    }
 
-        return resolveFields((CompositeData) attribute.get(field.substring(0,
-                dot)), field.substring(dot + 1));
+    /*
+     * Only made when op_query() is first used.
+     */
+    private static final class Operations {
+        static final OperationCache cache = new OperationCache(
+                getMBeanServer());
     }
 
     /**
@@ -190,17 +198,44 @@ public final class JMXHelper {
      */
     public static ObjectName register(final Object mbean,
             final String objectName) {
+        final ObjectName name = tryRegister(mbean, objectName);
+        if (name != null) {
+            return name;
+        }
+
+        try {
+            return new ObjectName(objectName);
+        } catch (MalformedObjectNameException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Try to register a managed bean. Note that errors are logged but then
+     * suppressed.
+     * 
+     * @param mbean
+     *            The managed bean to register.
+     * @param objectName
+     *            The name under which to register the bean.
+     * @return The object name of the mbean, or <code>null</code> if it was
+     *         not registered, so that we never unregister a bean with the
+     *         same name that someone else registered.
+     */
+    static ObjectName tryRegister(final Object mbean, final String objectName) {
         log.debug("registering [" + objectName + "]: " + mbean);
 
         ObjectName name = null;
         try {
             name = new ObjectName(objectName);
             getMBeanServer().registerMBean(mbean, name);
+            accessors.registered(getMBeanServer(), name, mbean);
+            return name;
         } catch (Exception e) {
-            log.warn("unable to register '" + name + "'", e);
+            log.warn("unable to register '" + (name == null ? objectName
+                    : name) + "'", e);
+            return null;
         }
-
-        return name;
     }
 
     /**
@@ -212,6 +247,7 @@ public final class JMXHelper {
     public static void unregister(final ObjectName objectName) {
         log.debug("un-registering [" + objectName + "]");
 
+        accessors.unregistered(objectName);
         try {
             getMBeanServer().unregisterMBean(objectName);
         } catch (Exception e) {
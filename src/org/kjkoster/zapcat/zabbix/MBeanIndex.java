@@ -0,0 +1,386 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import org.apache.log4j.Logger;
+import org.kjkoster.zapcat.util.JsonWriter;
+
+/**
+ * An in-memory index of the mbeans that are registered with an mbean server,
+ * for low-level discovery. The index is filled once with
+ * <code>queryNames()</code> and then kept current by listening to
+ * registration and unregistration notifications, so discovery polls never
+ * scan the mbean server.
+ * <p>
+ * The index starts on the first discovery query, so agents that never see
+ * one pay nothing. Names are grouped by domain, so that a pattern with a
+ * fixed domain only looks at the mbeans in that domain.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class MBeanIndex {
+    private static final Logger log = Logger.getLogger(MBeanIndex.class);
+
+    // rough cost of an object name and its place in the index, in bytes
+    private static final int ENTRY_OVERHEAD = 160;
+
+    private final int maxRows;
+
+    private final Map<String, Set<ObjectName>> domains = new ConcurrentHashMap<String, Set<ObjectName>>();
+
+    private final AtomicLong size = new AtomicLong();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final AtomicLong truncated = new AtomicLong();
+
+    private final NotificationListener listener = new NotificationListener() {
+        public void handleNotification(final Notification notification,
+                final Object handback) {
+            if (!(notification instanceof MBeanServerNotification)) {
+                return;
+            }
+
+            final ObjectName name = ((MBeanServerNotification) notification)
+                    .getMBeanName();
+            if (MBeanServerNotification.REGISTRATION_NOTIFICATION
+                    .equals(notification.getType())) {
+                add(name);
+            } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION
+                    .equals(notification.getType())) {
+                remove(name);
+            }
+        }
+    };
+
+    private MBeanServer mBeanServer;
+
+    private volatile boolean started = false;
+
+    /**
+     * Create a new index.
+     *
+     * @param mBeanServer
+     *            The mbean server to index.
+     * @param maxRows
+     *            The maximum number of rows in a discovery response.
+     */
+    MBeanIndex(final MBeanServer mBeanServer, final int maxRows) {
+        this.mBeanServer = mBeanServer;
+        this.maxRows = maxRows;
+    }
+
+    /**
+     * Index a different mbean server. If the index was running, it is rebuilt
+     * for the new server.
+     *
+     * @param mBeanServer
+     *            The mbean server to index.
+     */
+    synchronized void setMBeanServer(final MBeanServer mBeanServer) {
+        final boolean restart = started;
+        stop();
+        this.mBeanServer = mBeanServer;
+        if (restart) {
+            start();
+        }
+    }
+
+    /**
+     * Stop listening for notifications and drop the index.
+     */
+    synchronized void stop() {
+        if (!started) {
+            return;
+        }
+
+        started = false;
+        try {
+            mBeanServer.removeNotificationListener(
+                    MBeanServerDelegate.DELEGATE_NAME, listener);
+        } catch (InstanceNotFoundException e) {
+            // ignore, the server is going away
+        } catch (ListenerNotFoundException e) {
+            // ignore, it was not registered
+        }
+        domains.clear();
+        size.set(0L);
+        bytes.set(0L);
+    }
+
+    /*
+     * Start listening before we take the initial snapshot, so that we do not
+     * miss registrations. Names that show up both ways are indexed only once.
+     */
+    private synchronized void start() {
+        if (started) {
+            return;
+        }
+
+        final MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        filter.enableAllObjectNames();
+        try {
+            mBeanServer.addNotificationListener(
+                    MBeanServerDelegate.DELEGATE_NAME, listener, filter, null);
+        } catch (InstanceNotFoundException e) {
+            // cannot happen, every mbean server has a delegate
+            throw new IllegalStateException(e);
+        }
+
+        for (final ObjectName name : mBeanServer.queryNames(null, null)) {
+            add(name);
+        }
+        started = true;
+
+        log.debug("indexed " + size.get() + " mbeans");
+    }
+
+    private void add(final ObjectName name) {
+        Set<ObjectName> names = domains.get(name.getDomain());
+        if (names == null) {
+            synchronized (domains) {
+                names = domains.get(name.getDomain());
+                if (names == null) {
+                    names = Collections
+                            .newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+                    domains.put(name.getDomain(), names);
+                }
+            }
+        }
+
+        if (names.add(name)) {
+            size.incrementAndGet();
+            bytes.addAndGet(cost(name));
+        }
+    }
+
+    private void remove(final ObjectName name) {
+        final Set<ObjectName> names = domains.get(name.getDomain());
+        if (names != null && names.remove(name)) {
+            size.decrementAndGet();
+            bytes.addAndGet(-cost(name));
+        }
+    }
+
+    private static long cost(final ObjectName name) {
+        // the canonical name is kept, plus about as much again in key tables
+        return ENTRY_OVERHEAD + 4L * name.getCanonicalName().length();
+    }
+
+    /**
+     * Find the mbeans that match a pattern.
+     *
+     * @param pattern
+     *            The object name pattern to match.
+     * @return The names of the matching mbeans.
+     */
+    List<ObjectName> names(final ObjectName pattern) {
+        if (!started) {
+            start();
+        }
+
+        final List<ObjectName> found = new ArrayList<ObjectName>();
+        if (pattern.isDomainPattern()) {
+            for (final Set<ObjectName> names : domains.values()) {
+                match(found, names, pattern);
+            }
+        } else {
+            final Set<ObjectName> names = domains.get(pattern.getDomain());
+            if (names != null) {
+                match(found, names, pattern);
+            }
+        }
+        return found;
+    }
+
+    private static void match(final List<ObjectName> found,
+            final Set<ObjectName> names, final ObjectName pattern) {
+        for (final ObjectName name : names) {
+            if (pattern.apply(name)) {
+                found.add(name);
+            }
+        }
+    }
+
+    /**
+     * Build the Zabbix low-level discovery response for a pattern. There is
+     * one row per matching mbean, with the macros {#JMXOBJ} and {#JMXDOMAIN}
+     * and one macro per key property, so "type=Connector,port=8080" gives
+     * {#TYPE} and {#PORT}.
+     *
+     * @param pattern
+     *            The object name pattern to match.
+     * @return The discovery JSON.
+     */
+    String discover(final ObjectName pattern) {
+        if (!started) {
+            start();
+        }
+
+        final JsonWriter json = new JsonWriter().beginObject().name("data")
+                .beginArray();
+        int rows = 0;
+        if (pattern.isDomainPattern()) {
+            for (final Set<ObjectName> names : domains.values()) {
+                rows = rows(json, names, pattern, rows);
+            }
+        } else {
+            final Set<ObjectName> names = domains.get(pattern.getDomain());
+            if (names != null) {
+                rows = rows(json, names, pattern, rows);
+            }
+        }
+
+        if (rows > maxRows) {
+            truncated.incrementAndGet();
+            log.warn("discovery of " + pattern + " was cut off at "
+                    + maxRows + " rows");
+        }
+
+        return json.endArray().endObject().toString();
+    }
+
+    private int rows(final JsonWriter json, final Set<ObjectName> names,
+            final ObjectName pattern, int rows) {
+        for (final ObjectName name : names) {
+            if (rows > maxRows) {
+                break;
+            }
+            if (!pattern.apply(name)) {
+                continue;
+            }
+            if (++rows > maxRows) {
+                break;
+            }
+
+            json.beginObject();
+            json.member("{#JMXOBJ}", name.getCanonicalName());
+            json.member("{#JMXDOMAIN}", name.getDomain());
+            for (final Map.Entry<String, String> property : name
+                    .getKeyPropertyList().entrySet()) {
+                json.member(macro(property.getKey()), property.getValue());
+            }
+            json.endObject();
+        }
+        return rows;
+    }
+
+    /*
+     * Zabbix macro names may only hold upper case letters, digits, dots and
+     * underscores.
+     */
+    private static String macro(final String key) {
+        final StringBuilder macro = new StringBuilder(key.length() + 3);
+        macro.append("{#");
+        for (int i = 0; i < key.length(); i++) {
+            final char c = Character.toUpperCase(key.charAt(i));
+            macro.append((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '.' ? c : '_');
+        }
+        return macro.append('}').toString();
+    }
+
+    /**
+     * The interface to our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public interface StatisticsMBean {
+        /**
+         * Read the number of mbeans in the index.
+         *
+         * @return The number of indexed mbeans, zero if the index has not
+         *         been started.
+         */
+        long getSize();
+
+        /**
+         * Read an estimate of the memory that the index holds on to.
+         *
+         * @return The estimated size of the index, in bytes.
+         */
+        long getEstimatedBytes();
+
+        /**
+         * Read the maximum number of rows in a discovery response.
+         *
+         * @return The maximum number of rows.
+         */
+        int getMaxRows();
+
+        /**
+         * Read the number of discovery responses that were cut off because
+         * they would have had more rows than allowed.
+         *
+         * @return The number of truncated responses.
+         */
+        long getTruncated();
+    }
+
+    /**
+     * Our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public class Statistics implements StatisticsMBean {
+        /**
+         * @see org.kjkoster.zapcat.zabbix.MBeanIndex.StatisticsMBean#getSize()
+         */
+        public long getSize() {
+            return size.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.MBeanIndex.StatisticsMBean#getEstimatedBytes()
+         */
+        public long getEstimatedBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.MBeanIndex.StatisticsMBean#getMaxRows()
+         */
+        public int getMaxRows() {
+            return maxRows;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.MBeanIndex.StatisticsMBean#getTruncated()
+         */
+        public long getTruncated() {
+            return truncated.get();
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Invokes mbean operations for <code>jmx_op</code> keys. Finding the operation
+ * means fetching the mbean info and scanning all operations, so the resolved
+ * signature and a converter for each parameter are cached per object name,
+ * operation name and number of arguments. After the first call, a
+ * <code>jmx_op</code> poll costs a single <code>invoke()</code>.
+ * <p>
+ * Cached signatures for an mbean are dropped when that mbean is unregistered,
+ * so a bean that is registered again with a different interface is looked up
+ * afresh.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class OperationCache {
+    private static final Logger log = Logger.getLogger(OperationCache.class);
+
+    private static final Map<String, Converter> CONVERTERS = new HashMap<String, Converter>();
+
+    static {
+        final Converter booleans = new Converter() {
+            @Override
+            Object convert(final String value) {
+                return Boolean.valueOf(value);
+            }
+        };
+        final Converter bytes = new Converter() {
+            @Override
+            Object convert(final String value) {
+                return Byte.valueOf(value);
+            }
+        };
+        final Converter shorts = new Converter() {
+            @Override
+            Object convert(final String value) {
+                return Short.valueOf(value);
+            }
+        };
+        final Converter ints = new Converter() {
+            @Override
+            Object convert(final String value) {
+                return Integer.valueOf(value);
+            }
+        };
+        final Converter longs = new Converter() {
+            @Override
+            Object convert(final String value) {
+                return Long.valueOf(value);
+            }
+        };
+        final Converter floats = new Converter() {
+            @Override
+            Object convert(final String value) {
+                return Float.valueOf(value);
+            }
+        };
+        final Converter doubles = new Converter() {
+            @Override
+            Object convert(final String value) {
+                return Double.valueOf(value);
+            }
+        };
+        final Converter chars = new Converter() {
+            @Override
+            Object convert(final String value) {
+                if (value.length() != 1) {
+                    throw new IllegalArgumentException("'" + value
+                            + "' is not a single character");
+                }
+                return Character.valueOf(value.charAt(0));
+            }
+        };
+        final Converter strings = new Converter() {
+            @Override
+            Object convert(final String value) {
+                return value;
+            }
+        };
+
+        converter(booleans, boolean.class, Boolean.class);
+        converter(bytes, byte.class, Byte.class);
+        converter(shorts, short.class, Short.class);
+        converter(ints, int.class, Integer.class);
+        converter(longs, long.class, Long.class);
+        converter(floats, float.class, Float.class);
+        converter(doubles, double.class, Double.class);
+        converter(chars, char.class, Character.class);
+        CONVERTERS.put(String.class.getName(), strings);
+        CONVERTERS.put(Object.class.getName(), strings);
+    }
+
+    private static void converter(final Converter converter,
+            final Class<?> primitive, final Class<?> wrapper) {
+        CONVERTERS.put(primitive.getName(), converter);
+        CONVERTERS.put(wrapper.getName(), converter);
+    }
+
+    private final Map<Key, Signature> signatures = new ConcurrentHashMap<Key, Signature>();
+
+    private final NotificationListener listener = new NotificationListener() {
+        public void handleNotification(final Notification notification,
+                final Object handback) {
+            if (notification instanceof MBeanServerNotification) {
+                forget(((MBeanServerNotification) notification)
+                        .getMBeanName());
+            }
+        }
+    };
+
+    private volatile MBeanServer mBeanServer;
+
+    private boolean listening = false;
+
+    /**
+     * Create a new operation cache.
+     *
+     * @param mBeanServer
+     *            The mbean server to invoke operations on.
+     */
+    OperationCache(final MBeanServer mBeanServer) {
+        this.mBeanServer = mBeanServer;
+    }
+
+    /**
+     * Invoke operations on a different mbean server, dropping all cached
+     * signatures.
+     *
+     * @param mBeanServer
+     *            The mbean server to invoke operations on.
+     */
+    synchronized void setMBeanServer(final MBeanServer mBeanServer) {
+        stop();
+        this.mBeanServer = mBeanServer;
+    }
+
+    /**
+     * Stop listening for unregistrations and drop all cached signatures.
+     */
+    synchronized void stop() {
+        if (listening) {
+            listening = false;
+            try {
+                mBeanServer.removeNotificationListener(
+                        MBeanServerDelegate.DELEGATE_NAME, listener);
+            } catch (InstanceNotFoundException e) {
+                // ignore, the server is going away
+            } catch (ListenerNotFoundException e) {
+                // ignore, it was not registered
+            }
+        }
+        signatures.clear();
+    }
+
+    /**
+     * Invoke an operation.
+     *
+     * @param objectName
+     *            The mbean to invoke the operation on.
+     * @param operation
+     *            The name of the operation, matched without regard to case.
+     * @param arguments
+     *            The arguments, as strings.
+     * @return The result of the operation, or <code>null</code> if there was
+     *         none.
+     * @throws InstanceNotFoundException
+     *             When the mbean could not be found.
+     * @throws UnsupportedOperationException
+     *             When there is no operation by that name and number of
+     *             arguments, or one of its parameter types is not supported.
+     * @throws IllegalArgumentException
+     *             When an argument could not be converted.
+     * @throws MBeanException
+     *             When the operation threw an exception.
+     * @throws ReflectionException
+     *             When the operation could not be invoked.
+     */
+    String invoke(final ObjectName objectName, final String operation,
+            final String[] arguments) throws InstanceNotFoundException,
+            MBeanException, ReflectionException {
+        final MBeanServer server = mBeanServer;
+        final Key key = new Key(objectName, operation, arguments.length);
+        Signature signature = signatures.get(key);
+        if (signature == null) {
+            // listen first, so that we cannot miss an unregistration
+            listen();
+            signature = resolve(server, objectName, operation, arguments.length);
+            signatures.put(key, signature);
+        }
+
+        final Object[] values = new Object[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+            values[i] = signature.converters[i].convert(arguments[i]);
+        }
+
+        final Object result = server.invoke(objectName, signature.operation,
+                values, signature.types);
+        return result == null ? null : result.toString();
+    }
+
+    private static Signature resolve(final MBeanServer server,
+            final ObjectName objectName, final String operation,
+            final int arity) throws InstanceNotFoundException,
+            ReflectionException {
+        final MBeanOperationInfo[] operations;
+        try {
+            operations = server.getMBeanInfo(objectName).getOperations();
+        } catch (IntrospectionException e) {
+            throw new UnsupportedOperationException(e.getMessage(), e);
+        }
+
+        boolean found = false;
+        for (final MBeanOperationInfo info : operations) {
+            if (!info.getName().equalsIgnoreCase(operation)) {
+                continue;
+            }
+            found = true;
+
+            final MBeanParameterInfo[] parameters = info.getSignature();
+            if (parameters.length != arity) {
+                continue;
+            }
+
+            final String[] types = new String[arity];
+            final Converter[] converters = new Converter[arity];
+            for (int i = 0; i < arity; i++) {
+                types[i] = parameters[i].getType();
+                converters[i] = converter(server, objectName, types[i]);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("resolved " + info.getName() + " with " + arity
+                        + " arguments on " + objectName);
+            }
+            return new Signature(info.getName(), types, converters);
+        }
+
+        throw new UnsupportedOperationException(
+                found ? "Incorrect number of arguments."
+                        : "Operation not found in mbean.");
+    }
+
+    @SuppressWarnings( { "unchecked", "rawtypes" })
+    private static Converter converter(final MBeanServer server,
+            final ObjectName objectName, final String type)
+            throws InstanceNotFoundException {
+        final Converter converter = CONVERTERS.get(type);
+        if (converter != null) {
+            return converter;
+        }
+
+        final Class<?> clazz;
+        try {
+            clazz = Class.forName(type, false, server
+                    .getClassLoaderFor(objectName));
+        } catch (ClassNotFoundException e) {
+            throw new UnsupportedOperationException("parameter type " + type
+                    + " is not supported", e);
+        }
+        if (!clazz.isEnum()) {
+            throw new UnsupportedOperationException("parameter type " + type
+                    + " is not supported");
+        }
+
+        final Class<? extends Enum> enumType = clazz.asSubclass(Enum.class);
+        return new Converter() {
+            @Override
+            Object convert(final String value) {
+                return Enum.valueOf(enumType, value);
+            }
+        };
+    }
+
+    /*
+     * We only need to hear about unregistrations once something is cached.
+     */
+    private synchronized void listen() {
+        if (listening) {
+            return;
+        }
+
+        final MBeanServerNotificationFilter filter = new MBeanServerNotificationFilter();
+        filter.enableAllObjectNames();
+        filter.disableType(MBeanServerNotification.REGISTRATION_NOTIFICATION);
+        try {
+            mBeanServer.addNotificationListener(
+                    MBeanServerDelegate.DELEGATE_NAME, listener, filter, null);
+            listening = true;
+        } catch (InstanceNotFoundException e) {
+            // cannot happen, every mbean server has a delegate
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void forget(final ObjectName objectName) {
+        final Iterator<Key> keys = signatures.keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().objectName.equals(objectName)) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Converts one argument from the key into the type that the operation
+     * expects.
+     */
+    private abstract static class Converter {
+        abstract Object convert(String value);
+    }
+
+    /**
+     * A resolved operation.
+     */
+    private static final class Signature {
+        final String operation;
+
+        final String[] types;
+
+        final Converter[] converters;
+
+        Signature(final String operation, final String[] types,
+                final Converter[] converters) {
+            this.operation = operation;
+            this.types = types;
+            this.converters = converters;
+        }
+    }
+
+    /**
+     * The key of a resolved operation.
+     */
+    private static final class Key {
+        final ObjectName objectName;
+
+        final String operation;
+
+        final int arity;
+
+        Key(final ObjectName objectName, final String operation,
+                final int arity) {
+            this.objectName = objectName;
+            this.operation = operation;
+            this.arity = arity;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * objectName.hashCode() + operation.hashCode()) * 31
+                    + arity;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            final Key that = (Key) other;
+            return arity == that.arity && objectName.equals(that.objectName)
+                    && operation.equals(that.operation);
+        }
+    }
+}
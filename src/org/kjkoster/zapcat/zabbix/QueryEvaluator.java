@@ -0,0 +1,641 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ * 
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.apache.log4j.Logger;
+import org.kjkoster.zapcat.Trapper;
+import org.kjkoster.zapcat.util.AttributeFormater;
+import org.kjkoster.zapcat.util.JsonWriter;
+
+import javax.management.*;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluates Zabbix item keys against the JMX mbean server, the system
+ * properties and the environment. The evaluator knows nothing about sockets or
+ * framing, so it can be shared by the blocking query handlers and the
+ * non-blocking selector loops.
+ * 
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class QueryEvaluator {
+    private static final Logger log = Logger.getLogger(QueryEvaluator.class);
+    private static final String VERSION = "zapcat 1.4";
+
+    /**
+     * The return value that Zabbix interprets as the agent not supporting the
+     * item.
+     */
+    static final String NOTSUPPORTED = "ZBX_NOTSUPPORTED";
+
+    // the life cycle of a query that runs against the deadline
+    private static final int NEW = 0;
+
+    private static final int RUNNING = 1;
+
+    private static final int DONE = 2;
+
+    private static final int LATE = 3;
+
+    private volatile MBeanServer mBeanServer;
+
+    private final ResultCache cache;
+
+    private final QueryPlan.Cache plans;
+
+    private final MBeanIndex index;
+
+    private final SampleStore samples;
+
+    private final Sampler sampler;
+
+    private final Snapshots snapshots;
+
+    private final OperationCache operations;
+
+    // reads mbeans in parallel for aggregates, or null to read them inline
+    private final ThreadPoolExecutor readers;
+
+    private final long deadline;
+
+    private final CircuitBreaker breaker;
+
+    // runs JMX queries against the deadline, or null to run them inline
+    private final ThreadPoolExecutor evaluators;
+
+    /**
+     * Create a new evaluator.
+     * 
+     * @param mBeanServer
+     *            The mbean server to run JMX queries against.
+     * @param cache
+     *            The cache for JMX query results.
+     * @param maxPlans
+     *            The maximum number of parsed item keys to keep.
+     * @param index
+     *            The index of mbean names, for discovery and aggregates.
+     * @param samples
+     *            The previous samples of rate and delta keys.
+     * @param sampler
+     *            The background sampler for window keys.
+     * @param snapshots
+     *            The snapshots of hot mbeans.
+     * @param readerThreads
+     *            The maximum number of threads that read mbeans in parallel
+     *            for aggregate keys, zero to read them one by one.
+     * @param deadline
+     *            The number of milliseconds that a JMX query may take, zero
+     *            to let queries take as long as they take.
+     * @param breaker
+     *            The circuit breaker that keeps track of slow mbeans.
+     * @param evaluatorThreads
+     *            The maximum number of JMX queries that may be running
+     *            against the deadline at the same time. Further queries fail
+     *            right away.
+     */
+    QueryEvaluator(final MBeanServer mBeanServer, final ResultCache cache,
+            final int maxPlans, final MBeanIndex index,
+            final SampleStore samples, final Sampler sampler,
+            final Snapshots snapshots, final int readerThreads, final long deadline,
+            final CircuitBreaker breaker, final int evaluatorThreads) {
+        this.mBeanServer = mBeanServer;
+        this.cache = cache;
+        this.plans = new QueryPlan.Cache(maxPlans);
+        this.index = index;
+        this.samples = samples;
+        this.sampler = sampler;
+        this.snapshots = snapshots;
+        this.operations = new OperationCache(mBeanServer);
+
+        if (readerThreads > 0) {
+            // when all readers are busy, the polling thread pitches in
+            readers = new ThreadPoolExecutor(0, readerThreads, 60L,
+                    TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    daemons("Zabbix-reader"),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        } else {
+            readers = null;
+        }
+
+        this.deadline = deadline;
+        this.breaker = breaker;
+        if (deadline > 0L) {
+            // threads stuck in slow mbeans count against the limit
+            evaluators = new ThreadPoolExecutor(0, Math.max(1,
+                    evaluatorThreads), 60L, TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    daemons("Zabbix-evaluator"));
+        } else {
+            evaluators = null;
+        }
+    }
+
+    private static ThreadFactory daemons(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    void setMBeanServer(final MBeanServer mBeanServer) {
+        this.mBeanServer = mBeanServer;
+        // the old server's results are unreachable now, so free them
+        cache.clear();
+        index.setMBeanServer(mBeanServer);
+        operations.setMBeanServer(mBeanServer);
+        sampler.setMBeanServer(mBeanServer);
+        snapshots.setMBeanServer(mBeanServer);
+    }
+
+    /**
+     * Stop listening to the mbean server.
+     */
+    void stop() {
+        index.stop();
+        operations.stop();
+        sampler.stop();
+        snapshots.stop();
+        if (readers != null) {
+            readers.shutdown();
+        }
+        if (evaluators != null) {
+            evaluators.shutdownNow();
+        }
+    }
+
+    MBeanServer getMBeanServer() {
+        return mBeanServer;
+    }
+
+    /**
+     * Work out the response to a single Zabbix query.
+     * 
+     * @param query
+     *            The item key, as sent by the Zabbix server.
+     * @return The response to send back, or <code>null</code> if there is no
+     *         value for the key.
+     */
+    String response(final String query) {
+        final QueryPlan plan = plans.plan(query);
+        if (plan.type == QueryPlan.Type.JMX) {
+            final String value = snapshots.get(plan.objectName, plan.path);
+            if (value != null) {
+                return value;
+            }
+        }
+
+        if (evaluators == null || !isTimed(plan.type)) {
+            return evaluate(plan);
+        }
+
+        // a cached value is as fast as it gets, no need to hand it off
+        if (plan.type == QueryPlan.Type.JMX
+                && cache.ttl(plan.objectName, plan.attribute) > 0L) {
+            final String value = cache.get(mBeanServer, plan.objectName,
+                    plan.attribute);
+            if (value != null) {
+                return value;
+            }
+            return evaluate(plan, deadline, true);
+        }
+
+        return evaluate(plan, deadline, false);
+    }
+
+    private static boolean isTimed(final QueryPlan.Type type) {
+        switch (type) {
+        case JMX:
+        case MULTI:
+        case JMX_OP:
+        case SUM:
+        case MAX:
+        case AVG:
+        case RATE:
+        case DELTA:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /*
+     * Run a JMX query on one of the evaluator threads and wait for it no
+     * longer than the deadline. A query that does not make it is left to
+     * finish in the background, still holding on to its thread. That way a
+     * hanging mbean can tie up the evaluator pool, but never the threads that
+     * answer Zabbix.
+     * 
+     * When all evaluator threads are busy, the query fails right away. Running
+     * it on the polling thread instead would run it without a deadline, and
+     * the pool is most likely full because mbeans hang.
+     */
+    private String evaluate(final QueryPlan plan, final long timeout,
+            final boolean missed) {
+        if (!breaker.allow(plan.objectName)) {
+            log.debug(plan.objectName + " is tripped, not querying it");
+            return NOTSUPPORTED;
+        }
+
+        final AtomicInteger state = new AtomicInteger(NEW);
+        final Future<String> future;
+        try {
+            future = evaluators.submit(new Callable<String>() {
+                public String call() {
+                    if (!state.compareAndSet(NEW, RUNNING)) {
+                        // we gave up on it before it started
+                        return NOTSUPPORTED;
+                    }
+                    try {
+                        return evaluate(plan, missed);
+                    } finally {
+                        if (!state.compareAndSet(RUNNING, DONE)) {
+                            breaker.unstuck();
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            breaker.abandon(plan.objectName);
+            log.debug("all evaluator threads are busy, not querying "
+                    + plan.objectName);
+            return NOTSUPPORTED;
+        }
+
+        try {
+            final String value = future.get(timeout, TimeUnit.MILLISECONDS);
+            breaker.success(plan.objectName);
+            return value;
+        } catch (TimeoutException e) {
+            if (!state.compareAndSet(NEW, LATE)) {
+                breaker.stuck();
+                if (!state.compareAndSet(RUNNING, LATE)) {
+                    // it finished just now
+                    breaker.unstuck();
+                }
+            }
+            future.cancel(true);
+            breaker.timeout(plan.objectName);
+            log.debug("query on " + plan.objectName + " took longer than "
+                    + timeout + " ms");
+        } catch (ExecutionException e) {
+            breaker.success(plan.objectName);
+            log.debug("jmx error", e.getCause());
+        } catch (InterruptedException e) {
+            state.compareAndSet(NEW, LATE);
+            future.cancel(true);
+            breaker.abandon(plan.objectName);
+            Thread.currentThread().interrupt();
+        }
+        return NOTSUPPORTED;
+    }
+
+    /*
+     * Evaluate a query that already missed the result cache, without looking
+     * it up again.
+     */
+    private String evaluate(final QueryPlan plan, final boolean missed) {
+        return missed ? attribute(plan, false) : evaluate(plan);
+    }
+
+    private String evaluate(final QueryPlan plan) {
+        switch (plan.type) {
+        case TRAP:
+            return trap(plan);
+        case JMX_OP:
+            return invoke(plan);
+        case JMX:
+            return attribute(plan, true);
+        case MULTI:
+            return attributes(plan);
+        case DISCOVERY:
+            return index.discover(plan.objectName);
+        case COUNT:
+            return Integer.toString(index.names(plan.objectName).size());
+        case SUM:
+        case MAX:
+        case AVG:
+            return aggregate(plan);
+        case RATE:
+        case DELTA:
+            return change(plan);
+        case WINDOW:
+            return sampler.window(plan);
+        case AGE:
+            return Long.toString(snapshots.age(plan.objectName, plan.path));
+        case SYSTEM_PROPERTY:
+            return querySystemProperty(plan.attribute);
+        case SYSTEM_ENV:
+            return queryEnvironment(plan.attribute);
+        case PING:
+            return "1";
+        case VERSION:
+            return VERSION;
+        default:
+            return NOTSUPPORTED;
+        }
+    }
+
+    /*
+     * This allows testing of trapper functionality from within this framework.
+     * Set key to trap[zabbixServer][host][key][value] and the agent will create
+     * a trapper that pushes to the zabbix server.
+     * 
+     * This needs some work. The agent should be able to receive a trap command
+     * to schedule a trapper client, or work in a similar method to the way
+     * zabbix agent active checks work.
+     */
+    private String trap(final QueryPlan plan) {
+        final String zabbixServer = plan.name;
+        final String host = plan.operation;
+        final String key = plan.arguments[0];
+        final String value = plan.attribute;
+        try {
+            if (sendTrap(zabbixServer, host, key, value)) {
+                log.debug("Success: " + key + "='" + value + "' for host " + host + " sent to the Zabbix Trapper on " + zabbixServer);
+                return key + "='" + value + "' for host " + host + " sent to the Zabbix Trapper on " + zabbixServer;
+            }
+        } catch (Exception e) {
+            log.debug("Could not send trap to " + zabbixServer, e);
+            return NOTSUPPORTED;
+        }
+        log.debug("Fail: " + key + "='" + value + "' for host " + host + " sent to the Zabbix Trapper on " + zabbixServer);
+        return NOTSUPPORTED;
+    }
+
+    private String invoke(final QueryPlan plan) {
+        final ObjectName objectName = plan.objectName;
+        final String op_name = plan.operation;
+        try {
+            final String result = operations.invoke(objectName, op_name,
+                    plan.arguments);
+            return result == null ? NOTSUPPORTED : result;
+        } catch (InstanceNotFoundException e) {
+            log.debug("no bean named " + objectName, e);
+        } catch (UnsupportedOperationException e) {
+            log.debug("operation named " + op_name + " is not supported on bean named " + objectName, e);
+        } catch (IllegalArgumentException e) {
+            log.debug("parameters passed is illegal for operation named " + op_name + " on bean named " + objectName, e);
+        } catch (Exception e) {
+            log.debug("exception with jmx_op", e);
+        }
+        return NOTSUPPORTED;
+    }
+
+    private String attribute(final QueryPlan plan, final boolean lookup) {
+        final String attribute = plan.attribute;
+        try {
+            return query(plan.objectName, attribute, plan.path, lookup);
+        } catch (InstanceNotFoundException e) {
+            log.debug("no bean named " + plan.objectName, e);
+        } catch (AttributeNotFoundException e) {
+            log.debug("no attribute named " + attribute + " on bean named "
+                    + plan.objectName, e);
+        } catch (MBeanException e) {
+            log.warn("unable to find either " + plan.objectName + " or "
+                    + attribute, e);
+        } catch (ReflectionException e) {
+            log.warn("unable to find either " + plan.objectName + " or "
+                    + attribute, e);
+        } catch (RuntimeException e) {
+            log.debug("jmx error", e);
+        }
+        return NOTSUPPORTED;
+    }
+
+    /*
+     * Read all attributes with one getAttributes() call and return them as a
+     * JSON object, keyed on the attribute paths as they appeared in the key.
+     * Attributes that could not be read come back as null, so that one bad
+     * attribute does not take the others down with it.
+     */
+    private String attributes(final QueryPlan plan) {
+        final AttributeList list;
+        try {
+            list = mBeanServer.getAttributes(plan.objectName, plan.names);
+        } catch (InstanceNotFoundException e) {
+            log.debug("no bean named " + plan.objectName, e);
+            return NOTSUPPORTED;
+        } catch (ReflectionException e) {
+            log.warn("unable to read attributes of " + plan.objectName, e);
+            return NOTSUPPORTED;
+        }
+
+        final Map<String, Object> values = new HashMap<String, Object>();
+        for (final Object attribute : list) {
+            values.put(((Attribute) attribute).getName(),
+                    ((Attribute) attribute).getValue());
+        }
+
+        final JsonWriter json = new JsonWriter().beginObject();
+        for (int i = 0; i < plan.attributes.length; i++) {
+            final AttributePath path = plan.paths[i];
+            String value = null;
+            if (values.containsKey(path.getAttribute())) {
+                try {
+                    value = path.resolve(values.get(path.getAttribute()));
+                } catch (RuntimeException e) {
+                    log.debug("no attribute named " + plan.attributes[i]
+                            + " on bean named " + plan.objectName, e);
+                }
+            }
+            json.member(plan.attributes[i], value);
+        }
+        return json.endObject().toString();
+    }
+
+    /*
+     * Integral attributes are added up as longs, so that large counters do not
+     * lose precision. As soon as one value is a floating point number, the
+     * result is one too. Values that are not numbers and mbeans that vanished
+     * while we were reading are skipped.
+     */
+    private String aggregate(final QueryPlan plan) {
+        final Object[] values = read(index.names(plan.objectName), plan.path);
+
+        int count = 0;
+        boolean integral = true;
+        long longSum = 0L;
+        long longMax = Long.MIN_VALUE;
+        double doubleSum = 0.0;
+        double doubleMax = Double.NEGATIVE_INFINITY;
+        for (final Object value : values) {
+            if (!(value instanceof Number)) {
+                continue;
+            }
+
+            final Number number = (Number) value;
+            count++;
+            integral &= isIntegral(number);
+            longSum += number.longValue();
+            longMax = Math.max(longMax, number.longValue());
+            doubleSum += number.doubleValue();
+            doubleMax = Math.max(doubleMax, number.doubleValue());
+        }
+
+        switch (plan.type) {
+        case SUM:
+            return integral ? Long.toString(longSum) : AttributeFormater
+                    .format(doubleSum);
+        case MAX:
+            if (count == 0) {
+                return NOTSUPPORTED;
+            }
+            return integral ? Long.toString(longMax) : AttributeFormater
+                    .format(doubleMax);
+        default:
+            if (count == 0) {
+                return NOTSUPPORTED;
+            }
+            return AttributeFormater.format(doubleSum / count);
+        }
+    }
+
+    /*
+     * Rates and deltas always read the mbean, since a cached value would look
+     * like no change at all.
+     */
+    private String change(final QueryPlan plan) {
+        final Object value = read(plan.objectName, plan.path);
+        if (!(value instanceof Number)) {
+            log.debug(plan.path + " on " + plan.objectName
+                    + " is not a number");
+            return NOTSUPPORTED;
+        }
+
+        final Number number = (Number) value;
+        return samples.sample(plan.name, number, isIntegral(number),
+                plan.type == QueryPlan.Type.RATE);
+    }
+
+    private static boolean isIntegral(final Number number) {
+        return number instanceof Long || number instanceof Integer
+                || number instanceof Short || number instanceof Byte
+                || number instanceof AtomicLong
+                || number instanceof AtomicInteger
+                || number instanceof BigInteger;
+    }
+
+    private Object[] read(final List<ObjectName> names, final AttributePath path) {
+        final Object[] values = new Object[names.size()];
+        if (readers == null || names.size() < 2) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = read(names.get(i), path);
+            }
+            return values;
+        }
+
+        final List<Future<Object>> futures = new ArrayList<Future<Object>>(
+                names.size());
+        for (final ObjectName name : names) {
+            futures.add(readers.submit(new Callable<Object>() {
+                public Object call() {
+                    return read(name, path);
+                }
+            }));
+        }
+        for (int i = 0; i < values.length; i++) {
+            try {
+                values[i] = futures.get(i).get();
+            } catch (ExecutionException e) {
+                log.debug("unable to read " + names.get(i), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return values;
+    }
+
+    private Object read(final ObjectName objectName, final AttributePath path) {
+        try {
+            return path.navigate(JMXHelper.getAttribute(mBeanServer,
+                    objectName, path.getAttribute()));
+        } catch (Exception e) {
+            log.debug("unable to read " + path + " on " + objectName, e);
+            return null;
+        }
+    }
+
+    private String query(final ObjectName objectName, final String attribute,
+            final AttributePath path, final boolean lookup)
+            throws InstanceNotFoundException, AttributeNotFoundException,
+            MBeanException, ReflectionException {
+        // read and store against the same server, even if it is switched
+        final MBeanServer server = mBeanServer;
+        final long ttl = cache.ttl(objectName, attribute);
+        if (ttl <= 0L) {
+            return JMXHelper.query(server, objectName, path);
+        }
+
+        String value = lookup ? cache.get(server, objectName, attribute) : null;
+        if (value == null) {
+            value = JMXHelper.query(server, objectName, path);
+            cache.put(server, objectName, attribute, value, ttl);
+        }
+        return value;
+    }
+
+    /*
+     * This method will go away once I have added collection support to the
+     * query handler.
+     */
+    private String querySystemProperty(final String key) {
+        log.debug("System property[" + key + "]");
+        return System.getProperty(key);
+    }
+
+    private String queryEnvironment(final String key) {
+        log.debug("Environment[" + key + "]");
+        return System.getenv(key);
+    }
+
+
+    private boolean sendTrap(String zabbixServer, String host, String key, String value) {
+		Trapper trapper = null;
+		try {
+			// one item only, leave the spool to the long-lived trapper
+			trapper = new ZabbixTrapper(zabbixServer, host, false);
+			trapper.send(key, value);
+		} catch (Exception e) {
+			log.debug(e.toString());
+			return false;
+		} finally {
+			trapper.stop();
+		}
+		
+		return true;
+		
+	}
+}
@@ -0,0 +1,737 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A Zabbix item key, parsed. Parsing a key means running a regular expression,
+ * a handful of string scans and an object name parse, which is a large part of
+ * the cost of a poll. Since Zabbix asks for the same keys over and over, each
+ * distinct key is parsed once and the immutable plan is kept in a
+ * {@link Cache}.
+ * <p>
+ * Keys that cannot be parsed compile into a plan of type
+ * {@link Type#UNSUPPORTED}, so that malformed keys are not parsed again either.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class QueryPlan {
+    private static final Logger log = Logger.getLogger(QueryPlan.class);
+
+    //zabbix key must have this pattern, jmx["name","attribute", <ignored>]
+    private static final Pattern COMMA_PATTERN = Pattern.compile("([0-9a-zA-Z.-_]+)\\[\"([^\"\\]]+)\",\"([^\"\\]]+)\".*\\]");
+
+    /**
+     * The kinds of query that the agent answers.
+     */
+    enum Type {
+        /**
+         * Read an mbean attribute.
+         */
+        JMX,
+
+        /**
+         * Read several attributes of one mbean in a single call.
+         */
+        MULTI,
+
+        /**
+         * List the mbeans that match a pattern, for low-level discovery.
+         */
+        DISCOVERY,
+
+        /**
+         * Add up an attribute across all mbeans that match a pattern.
+         */
+        SUM,
+
+        /**
+         * Find the largest value of an attribute across all mbeans that match
+         * a pattern.
+         */
+        MAX,
+
+        /**
+         * Average an attribute across all mbeans that match a pattern.
+         */
+        AVG,
+
+        /**
+         * Count the mbeans that match a pattern.
+         */
+        COUNT,
+
+        /**
+         * Read a numeric attribute and answer its change per second since the
+         * previous poll.
+         */
+        RATE,
+
+        /**
+         * Read a numeric attribute and answer its change since the previous
+         * poll.
+         */
+        DELTA,
+
+        /**
+         * Answer how many milliseconds old the value of an attribute is when
+         * it is served from a snapshot.
+         */
+        AGE,
+
+        /**
+         * Answer the minimum, maximum, average or a percentile of an attribute
+         * over a recent window, from the samples that the background sampler
+         * took.
+         */
+        WINDOW,
+
+        /**
+         * Invoke an mbean operation.
+         */
+        JMX_OP,
+
+        /**
+         * Send a value to a Zabbix trapper.
+         */
+        TRAP,
+
+        /**
+         * Read a system property.
+         */
+        SYSTEM_PROPERTY,
+
+        /**
+         * Read an environment variable.
+         */
+        SYSTEM_ENV,
+
+        /**
+         * Answer "1".
+         */
+        PING,
+
+        /**
+         * Answer the agent version.
+         */
+        VERSION,
+
+        /**
+         * Answer {@link QueryEvaluator#NOTSUPPORTED}.
+         */
+        UNSUPPORTED
+    }
+
+    private static final QueryPlan UNSUPPORTED = new QueryPlan(
+            Type.UNSUPPORTED, null, null, null, null, null, null);
+
+    final Type type;
+
+    /**
+     * The mbean to query, for {@link Type#JMX}, {@link Type#MULTI} and
+     * {@link Type#JMX_OP}, or the pattern to match for {@link Type#DISCOVERY}
+     * and the aggregates.
+     */
+    final ObjectName objectName;
+
+    /**
+     * The attribute path as it appeared in the key, for {@link Type#JMX}. This
+     * is also the name of the property or environment variable to read.
+     */
+    final String attribute;
+
+    /**
+     * The parsed attribute path, for {@link Type#JMX} and the aggregates.
+     */
+    final AttributePath path;
+
+    /**
+     * The attribute paths as they appeared in the key, for {@link Type#MULTI}.
+     */
+    final String[] attributes;
+
+    /**
+     * The parsed attribute paths, for {@link Type#MULTI}. These run in
+     * parallel with {@link #attributes}.
+     */
+    final AttributePath[] paths;
+
+    /**
+     * The distinct attribute names to fetch, for {@link Type#MULTI}.
+     */
+    final String[] names;
+
+    /**
+     * The trapper server for {@link Type#TRAP}, the item key that the previous
+     * sample is kept under for {@link Type#RATE} and {@link Type#DELTA}, or
+     * the name of the sampled series for {@link Type#WINDOW}.
+     */
+    final String name;
+
+    /**
+     * The operation for {@link Type#JMX_OP}, the host for {@link Type#TRAP},
+     * or one of "min", "max", "avg" and "p" for {@link Type#WINDOW}.
+     */
+    final String operation;
+
+    /**
+     * The length of the window in nanoseconds, for {@link Type#WINDOW}.
+     */
+    final long window;
+
+    /**
+     * The percentile to answer, for {@link Type#WINDOW} with "p".
+     */
+    final double percentile;
+
+    /**
+     * The arguments for {@link Type#JMX_OP}, or the trapper key for
+     * {@link Type#TRAP}.
+     */
+    final String[] arguments;
+
+    private QueryPlan(final Type type, final ObjectName objectName,
+            final String attribute, final String name, final String operation,
+            final String[] arguments, final AttributePath path) {
+        this(type, objectName, attribute, name, operation, arguments, path,
+                null, null, null);
+    }
+
+    private QueryPlan(final Type type, final ObjectName objectName,
+            final String attribute, final String name, final String operation,
+            final String[] arguments, final AttributePath path,
+            final String[] attributes, final AttributePath[] paths,
+            final String[] names) {
+        this(type, objectName, attribute, name, operation, arguments, path,
+                attributes, paths, names, 0L, Double.NaN);
+    }
+
+    private QueryPlan(final Type type, final ObjectName objectName,
+            final String attribute, final String name, final String operation,
+            final String[] arguments, final AttributePath path,
+            final String[] attributes, final AttributePath[] paths,
+            final String[] names, final long window, final double percentile) {
+        this.type = type;
+        this.objectName = objectName;
+        this.attribute = attribute;
+        this.name = name;
+        this.operation = operation;
+        this.arguments = arguments;
+        this.path = path;
+        this.attributes = attributes;
+        this.paths = paths;
+        this.names = names;
+        this.window = window;
+        this.percentile = percentile;
+    }
+
+    private static QueryPlan simple(final Type type, final String attribute) {
+        return new QueryPlan(type, null, attribute, null, null, null, null);
+    }
+
+    private static QueryPlan jmx(final Type type, final String objectName,
+            final String attribute, final String name) {
+        try {
+            return new QueryPlan(type, new ObjectName(objectName), attribute,
+                    name, null, null, AttributePath.compile(attribute));
+        } catch (MalformedObjectNameException e) {
+            log.debug("no bean named " + objectName, e);
+            return UNSUPPORTED;
+        } catch (IllegalArgumentException e) {
+            log.debug("bad attribute path " + attribute, e);
+            return UNSUPPORTED;
+        }
+    }
+
+    private static QueryPlan multi(final String query) {
+        final List<String> parameters = parameters(query);
+        if (parameters == null || parameters.size() < 2) {
+            return UNSUPPORTED;
+        }
+
+        final ObjectName objectName;
+        try {
+            objectName = new ObjectName(parameters.get(0));
+        } catch (MalformedObjectNameException e) {
+            log.debug("no bean named " + parameters.get(0), e);
+            return UNSUPPORTED;
+        }
+
+        final int count = parameters.size() - 1;
+        final String[] attributes = new String[count];
+        final AttributePath[] paths = new AttributePath[count];
+        final Set<String> names = new LinkedHashSet<String>();
+        for (int i = 0; i < count; i++) {
+            attributes[i] = parameters.get(i + 1);
+            try {
+                paths[i] = AttributePath.compile(attributes[i]);
+            } catch (IllegalArgumentException e) {
+                log.debug("bad attribute path " + attributes[i], e);
+                return UNSUPPORTED;
+            }
+            names.add(paths[i].getAttribute());
+        }
+
+        return new QueryPlan(Type.MULTI, objectName, null, null, null, null,
+                null, attributes, paths, names.toArray(new String[names
+                        .size()]));
+    }
+
+    private static QueryPlan discovery(final String query) {
+        final List<String> parameters = parameters(query);
+        if (parameters == null || parameters.size() > 1) {
+            return UNSUPPORTED;
+        }
+
+        final String pattern = parameters.get(0).length() == 0 ? "*:*"
+                : parameters.get(0);
+        try {
+            return new QueryPlan(Type.DISCOVERY, new ObjectName(pattern),
+                    null, null, null, null, null);
+        } catch (MalformedObjectNameException e) {
+            log.debug("bad pattern " + pattern, e);
+            return UNSUPPORTED;
+        }
+    }
+
+    /*
+     * Aggregates take either jmx.sum[pattern][attribute] or
+     * jmx.sum["pattern","attribute"], like the plain jmx keys do. Counts just
+     * take jmx.count[pattern] or jmx.count["pattern"].
+     */
+    private static QueryPlan aggregate(final Type type, final String query) {
+        final String pattern;
+        final String attribute;
+        final int split = query.indexOf("][");
+        if (split >= 0) {
+            if (query.charAt(query.length() - 1) != ']') {
+                return UNSUPPORTED;
+            }
+            pattern = query.substring(query.indexOf('[') + 1, split);
+            attribute = query.substring(split + 2, query.length() - 1);
+        } else if (query.startsWith("[\"", query.indexOf('['))) {
+            final List<String> parameters = parameters(query);
+            if (parameters == null || parameters.size() > 2) {
+                return UNSUPPORTED;
+            }
+            pattern = parameters.get(0);
+            attribute = parameters.size() == 2 ? parameters.get(1) : null;
+        } else {
+            // an unquoted pattern has commas of its own, jmx.count[a:b=c,*]
+            if (query.charAt(query.length() - 1) != ']') {
+                return UNSUPPORTED;
+            }
+            pattern = query.substring(query.indexOf('[') + 1,
+                    query.length() - 1);
+            attribute = null;
+        }
+
+        AttributePath path = null;
+        if (type == Type.COUNT) {
+            if (attribute != null) {
+                return UNSUPPORTED;
+            }
+        } else {
+            if (attribute == null) {
+                return UNSUPPORTED;
+            }
+            try {
+                path = AttributePath.compile(attribute);
+            } catch (IllegalArgumentException e) {
+                log.debug("bad attribute path " + attribute, e);
+                return UNSUPPORTED;
+            }
+        }
+
+        try {
+            return new QueryPlan(type, new ObjectName(pattern), attribute,
+                    null, null, null, path);
+        } catch (MalformedObjectNameException e) {
+            log.debug("bad pattern " + pattern, e);
+            return UNSUPPORTED;
+        }
+    }
+
+    /*
+     * Rates, deltas and ages take jmx.rate[objectName][attribute] or
+     * jmx.rate["objectName","attribute"], like the plain jmx keys do.
+     */
+    private static QueryPlan counter(final Type type, final String query) {
+        final String objectName;
+        final String attribute;
+        final int split = query.indexOf("][");
+        if (split >= 0) {
+            if (query.charAt(query.length() - 1) != ']') {
+                return UNSUPPORTED;
+            }
+            objectName = query.substring(query.indexOf('[') + 1, split);
+            attribute = query.substring(split + 2, query.length() - 1);
+        } else {
+            final List<String> parameters = parameters(query);
+            if (parameters == null || parameters.size() != 2) {
+                return UNSUPPORTED;
+            }
+            objectName = parameters.get(0);
+            attribute = parameters.get(1);
+        }
+
+        return jmx(type, objectName, attribute, query);
+    }
+
+    /*
+     * Windows take jmx.window["objectName","attribute",function,window], where
+     * the function is min, max, avg or a percentile such as p99 and the window
+     * is a number of seconds, optionally followed by ms, s, m or h. Without a
+     * window we look at the last minute.
+     */
+    private static QueryPlan window(final String query) {
+        final List<String> parameters = parameters(query);
+        if (parameters == null || parameters.size() < 3
+                || parameters.size() > 4) {
+            return UNSUPPORTED;
+        }
+
+        final String function = parameters.get(2);
+        final String operation;
+        double percentile = Double.NaN;
+        if ("min".equals(function) || "max".equals(function)
+                || "avg".equals(function)) {
+            operation = function;
+        } else if (function.startsWith("p")) {
+            operation = "p";
+            try {
+                percentile = Double.parseDouble(function.substring(1));
+            } catch (NumberFormatException e) {
+                log.debug("bad percentile " + function, e);
+                return UNSUPPORTED;
+            }
+            if (!(percentile > 0.0 && percentile <= 100.0)) {
+                return UNSUPPORTED;
+            }
+        } else {
+            return UNSUPPORTED;
+        }
+
+        final long window = duration(parameters.size() == 4 ? parameters
+                .get(3) : "60s");
+        if (window <= 0L) {
+            return UNSUPPORTED;
+        }
+
+        final QueryPlan plan = jmx(Type.WINDOW, parameters.get(0),
+                parameters.get(1), null);
+        if (plan.type != Type.WINDOW) {
+            return plan;
+        }
+        return new QueryPlan(Type.WINDOW, plan.objectName, plan.attribute,
+                plan.objectName.getCanonicalName() + "|" + plan.attribute,
+                operation, null, plan.path, null, null, null, window,
+                percentile);
+    }
+
+    private static long duration(final String duration) {
+        final String[] units = { "ms", "s", "m", "h" };
+        final TimeUnit[] scales = { TimeUnit.MILLISECONDS, TimeUnit.SECONDS,
+                TimeUnit.MINUTES, TimeUnit.HOURS };
+        String number = duration;
+        TimeUnit scale = TimeUnit.SECONDS;
+        for (int i = 0; i < units.length; i++) {
+            if (duration.endsWith(units[i])) {
+                number = duration.substring(0, duration.length()
+                        - units[i].length());
+                scale = scales[i];
+                break;
+            }
+        }
+        try {
+            return scale.toNanos(Long.parseLong(number));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Split the parameters of a key such as
+     * <code>key["a,b",c, "d\"e"]</code> the way Zabbix does. Parameters are
+     * separated by commas and may be quoted, in which case they may contain
+     * commas and escaped quotes. Spaces in front of a parameter are ignored.
+     * 
+     * @param query
+     *            The item key.
+     * @return The parameters, or <code>null</code> if the key has no
+     *         parameter list or it is malformed.
+     */
+    static List<String> parameters(final String query) {
+        final int open = query.indexOf('[');
+        final int end = query.length() - 1;
+        if (open < 0 || end <= open || query.charAt(end) != ']') {
+            return null;
+        }
+
+        final List<String> parameters = new ArrayList<String>();
+        final StringBuilder parameter = new StringBuilder();
+        int i = open + 1;
+        while (true) {
+            while (i < end && query.charAt(i) == ' ') {
+                i++;
+            }
+
+            parameter.setLength(0);
+            if (i < end && query.charAt(i) == '"') {
+                i++;
+                while (i < end && query.charAt(i) != '"') {
+                    if (query.charAt(i) == '\\' && i + 1 < end
+                            && query.charAt(i + 1) == '"') {
+                        i++;
+                    }
+                    parameter.append(query.charAt(i++));
+                }
+                if (i == end) {
+                    // unterminated quote
+                    return null;
+                }
+                i++;
+                while (i < end && query.charAt(i) == ' ') {
+                    i++;
+                }
+                if (i < end && query.charAt(i) != ',') {
+                    return null;
+                }
+            } else {
+                while (i < end && query.charAt(i) != ',') {
+                    parameter.append(query.charAt(i++));
+                }
+            }
+            parameters.add(parameter.toString());
+
+            if (i == end) {
+                return parameters;
+            }
+            // skip the comma
+            i++;
+        }
+    }
+
+    /**
+     * Parse an item key.
+     *
+     * @param query
+     *            The item key, as sent by the Zabbix server.
+     * @return The plan for the key, never <code>null</code>.
+     */
+    static QueryPlan compile(final String query) {
+        // these must go before the comma style, which would match them too
+        if (query.startsWith("jmx.multi[")) {
+            return multi(query);
+        }
+        if (query.startsWith("jmx.discovery[")) {
+            return discovery(query);
+        }
+        if (query.startsWith("jmx.sum[")) {
+            return aggregate(Type.SUM, query);
+        }
+        if (query.startsWith("jmx.max[")) {
+            return aggregate(Type.MAX, query);
+        }
+        if (query.startsWith("jmx.avg[")) {
+            return aggregate(Type.AVG, query);
+        }
+        if (query.startsWith("jmx.count[")) {
+            return aggregate(Type.COUNT, query);
+        }
+        if (query.startsWith("jmx.rate[")) {
+            return counter(Type.RATE, query);
+        }
+        if (query.startsWith("jmx.delta[")) {
+            return counter(Type.DELTA, query);
+        }
+        if (query.startsWith("jmx.age[")) {
+            return counter(Type.AGE, query);
+        }
+        if (query.startsWith("jmx.window[")) {
+            return window(query);
+        }
+
+        //new query style compatible with zabbix 1.8.4 and above
+        {
+            Matcher matcher = COMMA_PATTERN.matcher(query);
+            boolean didFindMatch = matcher.find();
+            if (didFindMatch) {
+                String op = matcher.group(1);
+                String objectName = matcher.group(2);
+                String attribute = matcher.group(3);
+                log.debug("op = " + op + ", " + "objectName = " + objectName + ", " + "attribute = " + attribute);
+                return jmx(Type.JMX, objectName, attribute, null);
+            }
+        }
+
+        final int lastOpen = query.lastIndexOf('[');
+        final int lastClose = query.lastIndexOf(']');
+        String attribute = null;
+        if (lastOpen >= 0 && lastClose >= 0) {
+            attribute = query.substring(lastOpen + 1, lastClose);
+        }
+
+        /*
+        *  This allows testing of trapper functionality from within this framework.
+        *  Set key to trap[zabbixServer][host][key][value] and the agent will create
+        *  a trapper that pushes to the zabbix server. (e.g. use with zabbix_get -k"trap...")
+        *
+        *  This command should not be used at present. Stick to jmx / jmx_op.
+        */
+        if (query.startsWith("trap")) {
+            try {
+                StringTokenizer trapperParms = new StringTokenizer(query.substring(query.indexOf('[')), "[]", false);
+                String zabbixServer = trapperParms.nextToken();
+                String host = trapperParms.nextToken();
+                String key = trapperParms.nextToken();
+                return new QueryPlan(Type.TRAP, null, attribute, zabbixServer,
+                        host, new String[] { key }, null);
+            } catch (RuntimeException e) {
+                log.debug("Could not send trap from query " + query);
+                return UNSUPPORTED;
+            }
+        } else if (query.startsWith("jmx_op")) {
+            String query_string = query;
+            int index = query_string.indexOf(']');
+            if (index < 0 || index + 2 > query_string.length()) {
+                return UNSUPPORTED;
+            }
+
+            String objectName = query_string.substring(7, index);
+            query_string = query_string.substring(index + 2);
+            index = query_string.indexOf(']');
+            if (index < 0) {
+                return UNSUPPORTED;
+            }
+
+            String op_name = query_string.substring(0, index);
+            StringTokenizer tokens = new StringTokenizer(query_string.substring(index), "[],", false);
+            final String[] arguments = new String[tokens.countTokens()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = tokens.nextToken();
+            }
+            try {
+                return new QueryPlan(Type.JMX_OP, new ObjectName(objectName),
+                        null, objectName, op_name, arguments, null);
+            } catch (MalformedObjectNameException e) {
+                log.debug("no bean named " + objectName, e);
+                return UNSUPPORTED;
+            }
+        } else if (query.startsWith("jmx")) {
+            final int firstClose = query.lastIndexOf(']', lastOpen);
+            final int firstOpen = query.indexOf('[');
+            if (firstClose == -1 || firstOpen == -1 || attribute == null) {
+                return UNSUPPORTED;
+            }
+
+            return jmx(Type.JMX, query.substring(firstOpen + 1, firstClose),
+                    attribute, null);
+        } else if (query.startsWith("system.property")) {
+            return simple(Type.SYSTEM_PROPERTY, attribute);
+        } else if (query.startsWith("system.env")) {
+            return simple(Type.SYSTEM_ENV, attribute);
+        } else if (query.equals("agent.ping")) {
+            return simple(Type.PING, null);
+        } else if (query.equals("agent.version")) {
+            return simple(Type.VERSION, null);
+        }
+
+        return UNSUPPORTED;
+    }
+
+    /**
+     * A bounded cache of compiled plans, keyed on the item key.
+     */
+    static final class Cache {
+        private final int maxSize;
+
+        private final Map<String, QueryPlan> plans = new ConcurrentHashMap<String, QueryPlan>();
+
+        /**
+         * Create a new plan cache.
+         *
+         * @param maxSize
+         *            The maximum number of plans to keep.
+         */
+        Cache(final int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * Find the plan for a key, compiling it if we have not seen the key
+         * before. Two threads may compile the same key concurrently, which is
+         * harmless since plans are immutable.
+         *
+         * @param query
+         *            The item key.
+         * @return The plan for the key.
+         */
+        QueryPlan plan(final String query) {
+            QueryPlan plan = plans.get(query);
+            if (plan == null) {
+                plan = compile(query);
+                if (maxSize > 0) {
+                    plans.put(query, plan);
+                    if (plans.size() > maxSize) {
+                        evict();
+                    }
+                }
+            }
+            return plan;
+        }
+
+        /*
+         * Item keys are long-lived, so anything that pushes us over the limit
+         * is most likely a stream of one-off keys. Drop arbitrary plans until
+         * we are comfortably below the limit again.
+         */
+        private void evict() {
+            final int target = maxSize - maxSize / 10;
+            final Iterator<String> any = plans.keySet().iterator();
+            while (plans.size() > target && any.hasNext()) {
+                any.next();
+                any.remove();
+            }
+        }
+
+        /**
+         * Read the number of cached plans.
+         *
+         * @return The number of cached plans.
+         */
+        int size() {
+            return plans.size();
+        }
+    }
+}
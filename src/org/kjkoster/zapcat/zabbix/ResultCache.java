@@ -0,0 +1,369 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A bounded cache of JMX query results. When several Zabbix servers, proxies
+ * and dashboards poll the same attribute within a short time, only the first
+ * poll goes to the mbean.
+ * <p>
+ * Each (object name, attribute) pair gets a time to live. The first rule whose
+ * object name pattern (and attribute, if given) matches decides the TTL. Pairs
+ * that match no rule get the default TTL. A TTL of zero bypasses the cache
+ * altogether.
+ * <p>
+ * Rules are written as <code>pattern[#attribute]=ttl</code>, separated by
+ * semicolons, for example
+ * <code>Catalina:type=Manager,*=5000;java.lang:type=Memory#HeapMemoryUsage.used=0</code>.
+ * <p>
+ * Results are kept per mbean server, so that a query that was still running
+ * against the old server when the agent switched servers cannot answer for
+ * the new one.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class ResultCache {
+    private static final Logger log = Logger.getLogger(ResultCache.class);
+
+    private final long defaultTtl;
+
+    private final Rule[] rules;
+
+    private final int maxSize;
+
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a new cache.
+     *
+     * @param defaultTtl
+     *            The TTL in milliseconds for pairs that match no rule.
+     * @param rules
+     *            The TTL rules, or <code>null</code> for none.
+     * @param maxSize
+     *            The maximum number of cached results.
+     */
+    ResultCache(final long defaultTtl, final String rules, final int maxSize) {
+        this.defaultTtl = TimeUnit.MILLISECONDS.toNanos(defaultTtl);
+        this.rules = parse(rules);
+        this.maxSize = maxSize;
+    }
+
+    private static Rule[] parse(final String rules) {
+        final List<Rule> parsed = new ArrayList<Rule>();
+        if (rules != null) {
+            for (final String rule : rules.split(";")) {
+                if (rule.trim().length() == 0) {
+                    continue;
+                }
+
+                try {
+                    parsed.add(new Rule(rule.trim()));
+                } catch (Exception e) {
+                    log.error("invalid cache rule '" + rule + "', ignoring",
+                            e);
+                }
+            }
+        }
+
+        return parsed.toArray(new Rule[parsed.size()]);
+    }
+
+    /**
+     * Work out the TTL for a pair.
+     *
+     * @param objectName
+     *            The mbean.
+     * @param attribute
+     *            The attribute path.
+     * @return The TTL in nanoseconds, zero means "do not cache".
+     */
+    long ttl(final ObjectName objectName, final String attribute) {
+        for (final Rule rule : rules) {
+            if (rule.matches(objectName, attribute)) {
+                return rule.ttl;
+            }
+        }
+
+        return defaultTtl;
+    }
+
+    /**
+     * Look up a cached result.
+     *
+     * @param mBeanServer
+     *            The mbean server that the result was read from.
+     * @param objectName
+     *            The mbean.
+     * @param attribute
+     *            The attribute path.
+     * @return The cached value, or <code>null</code> if there is no fresh
+     *         value in the cache.
+     */
+    String get(final MBeanServer mBeanServer, final ObjectName objectName,
+            final String attribute) {
+        final Entry entry = entries.get(new Key(mBeanServer, objectName,
+                attribute));
+        if (entry != null && entry.expires - System.nanoTime() > 0L) {
+            hits.incrementAndGet();
+            return entry.value;
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Store a result.
+     *
+     * @param mBeanServer
+     *            The mbean server that the result was read from.
+     * @param objectName
+     *            The mbean.
+     * @param attribute
+     *            The attribute path.
+     * @param value
+     *            The result of the query.
+     * @param ttl
+     *            The TTL in nanoseconds, as returned by
+     *            {@link #ttl(ObjectName, String)}.
+     */
+    void put(final MBeanServer mBeanServer, final ObjectName objectName,
+            final String attribute, final String value, final long ttl) {
+        if (value == null || ttl <= 0L) {
+            return;
+        }
+
+        entries.put(new Key(mBeanServer, objectName, attribute), new Entry(
+                value, System.nanoTime() + ttl));
+        if (entries.size() > maxSize) {
+            evict();
+        }
+    }
+
+    /**
+     * Drop all cached results.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    /*
+     * First drop what has expired. If that is not enough, drop arbitrary
+     * entries until we are comfortably below the limit again.
+     */
+    private void evict() {
+        final long now = System.nanoTime();
+        final Iterator<Entry> expired = entries.values().iterator();
+        while (expired.hasNext()) {
+            if (expired.next().expires - now <= 0L) {
+                expired.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        final int target = maxSize - maxSize / 10;
+        final Iterator<Key> any = entries.keySet().iterator();
+        while (entries.size() > target && any.hasNext()) {
+            any.next();
+            any.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * The key of a cached result.
+     */
+    private static final class Key {
+        final MBeanServer mBeanServer;
+
+        final ObjectName objectName;
+
+        final String attribute;
+
+        Key(final MBeanServer mBeanServer, final ObjectName objectName,
+                final String attribute) {
+            this.mBeanServer = mBeanServer;
+            this.objectName = objectName;
+            this.attribute = attribute;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * System.identityHashCode(mBeanServer) + objectName
+                    .hashCode()) + attribute.hashCode();
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            final Key that = (Key) other;
+            return mBeanServer == that.mBeanServer
+                    && objectName.equals(that.objectName)
+                    && attribute.equals(that.attribute);
+        }
+    }
+
+    /**
+     * A cached result.
+     */
+    private static final class Entry {
+        final String value;
+
+        final long expires;
+
+        Entry(final String value, final long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A TTL rule.
+     */
+    private static final class Rule {
+        final ObjectName pattern;
+
+        // null matches any attribute
+        final String attribute;
+
+        final long ttl;
+
+        Rule(final String rule) throws MalformedObjectNameException {
+            final int equals = rule.lastIndexOf('=');
+            final String name = rule.substring(0, equals);
+            final int hash = name.lastIndexOf('#');
+
+            pattern = new ObjectName(hash < 0 ? name : name.substring(0, hash));
+            attribute = hash < 0 ? null : name.substring(hash + 1);
+            ttl = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(rule.substring(
+                    equals + 1).trim()));
+        }
+
+        boolean matches(final ObjectName objectName, final String attribute) {
+            return pattern.apply(objectName)
+                    && (this.attribute == null || this.attribute
+                            .equals(attribute));
+        }
+    }
+
+    /**
+     * The interface to our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public interface StatisticsMBean {
+        /**
+         * Read the number of queries that were answered from the cache.
+         *
+         * @return The number of cache hits.
+         */
+        long getHits();
+
+        /**
+         * Read the number of cacheable queries that had to go to the mbean.
+         *
+         * @return The number of cache misses.
+         */
+        long getMisses();
+
+        /**
+         * Read the number of results that were dropped to stay within the
+         * size limit, or because they had expired.
+         *
+         * @return The number of evicted results.
+         */
+        long getEvictions();
+
+        /**
+         * Read the number of results in the cache.
+         *
+         * @return The current size of the cache.
+         */
+        int getSize();
+
+        /**
+         * Drop all cached results.
+         */
+        void clear();
+    }
+
+    /**
+     * Our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public class Statistics implements StatisticsMBean {
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ResultCache.StatisticsMBean#getHits()
+         */
+        public long getHits() {
+            return hits.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ResultCache.StatisticsMBean#getMisses()
+         */
+        public long getMisses() {
+            return misses.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ResultCache.StatisticsMBean#getEvictions()
+         */
+        public long getEvictions() {
+            return evictions.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ResultCache.StatisticsMBean#getSize()
+         */
+        public int getSize() {
+            return entries.size();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.ResultCache.StatisticsMBean#clear()
+         */
+        public void clear() {
+            ResultCache.this.clear();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.kjkoster.zapcat.util.AttributeFormater;
+
+/**
+ * Remembers the previous sample of each <code>jmx.rate[]</code> and
+ * <code>jmx.delta[]</code> key, so that the agent can work out the change
+ * between two polls. Each item key is interned to a slot number once. The
+ * samples themselves live in preallocated primitive arrays, so a poll does
+ * not allocate anything to keep its state.
+ * <p>
+ * The store holds at most <code>maxSize</code> keys. Each slot costs 17 bytes
+ * (a timestamp, a value and a type tag) plus a reference to the key, and is
+ * allocated up front. A tracked key adds an entry in the intern map, about 80
+ * bytes plus the key itself. When the store is full, keys that were not
+ * polled for an hour are dropped first, then arbitrary keys until the store
+ * is 90% full. A dropped key starts over as if it were polled for the first
+ * time.
+ * <p>
+ * Timestamps come from {@link System#nanoTime()}, so rates are not thrown off
+ * by changes to the wall clock.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class SampleStore {
+    private static final Logger log = Logger.getLogger(SampleStore.class);
+
+    private static final long STALE = TimeUnit.HOURS.toNanos(1L);
+
+    private static final int STRIPES = 64;
+
+    private static final byte EMPTY = 0;
+
+    private static final byte LONG = 1;
+
+    private static final byte DOUBLE = 2;
+
+    private final int maxSize;
+
+    private final Map<String, Integer> slots = new ConcurrentHashMap<String, Integer>();
+
+    // the state of slot i is guarded by locks[i % STRIPES]
+    private final Object[] locks = new Object[STRIPES];
+
+    private final String[] owners;
+
+    private final long[] times;
+
+    // longs as they are, doubles as their raw bits
+    private final long[] values;
+
+    private final byte[] kinds;
+
+    // guarded by this
+    private final int[] free;
+
+    private int freeCount;
+
+    /**
+     * Create a new sample store.
+     *
+     * @param maxSize
+     *            The maximum number of keys to track.
+     */
+    SampleStore(final int maxSize) {
+        this.maxSize = Math.max(1, maxSize);
+        owners = new String[this.maxSize];
+        times = new long[this.maxSize];
+        values = new long[this.maxSize];
+        kinds = new byte[this.maxSize];
+        free = new int[this.maxSize];
+        for (int i = 0; i < this.maxSize; i++) {
+            free[i] = this.maxSize - 1 - i;
+        }
+        freeCount = this.maxSize;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Record a sample and work out the change since the previous one. A
+     * counter that went down is taken to have been reset to zero in between,
+     * so the change is the new value itself. The first sample of a key has
+     * nothing to compare to and gives zero.
+     *
+     * @param key
+     *            The item key.
+     * @param value
+     *            The value that was just read.
+     * @param integral
+     *            <code>true</code> if the value is a whole number.
+     * @param perSecond
+     *            <code>true</code> for the change per second,
+     *            <code>false</code> for the change itself.
+     * @return The formatted change.
+     */
+    String sample(final String key, final Number value, final boolean integral,
+            final boolean perSecond) {
+        final long now = System.nanoTime();
+        final int slot = slot(key);
+        synchronized (locks[slot % STRIPES]) {
+            if (!key.equals(owners[slot])) {
+                // the slot was handed to another key while we looked it up
+                return "0";
+            }
+
+            final byte kind = kinds[slot];
+            final long previous = values[slot];
+            final long elapsed = now - times[slot];
+            times[slot] = now;
+            if (integral) {
+                kinds[slot] = LONG;
+                values[slot] = value.longValue();
+            } else {
+                kinds[slot] = DOUBLE;
+                values[slot] = Double.doubleToRawLongBits(value.doubleValue());
+            }
+
+            if (kind == EMPTY || (perSecond && elapsed <= 0L)) {
+                return "0";
+            }
+
+            if (integral && kind == LONG) {
+                long delta = value.longValue() - previous;
+                if (delta < 0L) {
+                    delta = value.longValue();
+                }
+                return perSecond ? AttributeFormater.format(delta
+                        * (double) TimeUnit.SECONDS.toNanos(1L) / elapsed)
+                        : Long.toString(delta);
+            }
+
+            final double before = kind == LONG ? previous : Double
+                    .longBitsToDouble(previous);
+            double delta = value.doubleValue() - before;
+            if (delta < 0.0) {
+                delta = value.doubleValue();
+            }
+            return AttributeFormater.format(perSecond ? delta
+                    * TimeUnit.SECONDS.toNanos(1L) / elapsed : delta);
+        }
+    }
+
+    private int slot(final String key) {
+        final Integer slot = slots.get(key);
+        if (slot != null) {
+            return slot;
+        }
+
+        synchronized (this) {
+            final Integer raced = slots.get(key);
+            if (raced != null) {
+                return raced;
+            }
+
+            if (freeCount == 0) {
+                evict();
+            }
+            final int allocated = free[--freeCount];
+            synchronized (locks[allocated % STRIPES]) {
+                owners[allocated] = key;
+                kinds[allocated] = EMPTY;
+            }
+            slots.put(key, allocated);
+            return allocated;
+        }
+    }
+
+    /*
+     * Called with the lock on this held.
+     */
+    private void evict() {
+        final long now = System.nanoTime();
+        final int target = Math.min(maxSize - maxSize / 10, maxSize - 1);
+        int dropped = 0;
+        for (final boolean staleOnly : new boolean[] { true, false }) {
+            final Iterator<Map.Entry<String, Integer>> entries = slots
+                    .entrySet().iterator();
+            while (slots.size() > target && entries.hasNext()) {
+                final int slot = entries.next().getValue();
+                synchronized (locks[slot % STRIPES]) {
+                    if (staleOnly && kinds[slot] != EMPTY
+                            && now - times[slot] < STALE) {
+                        continue;
+                    }
+                    owners[slot] = null;
+                    kinds[slot] = EMPTY;
+                }
+                entries.remove();
+                free[freeCount++] = slot;
+                dropped++;
+            }
+        }
+        log.debug("dropped " + dropped + " samples");
+    }
+
+    /**
+     * Read the number of keys that are tracked.
+     *
+     * @return The number of keys.
+     */
+    int size() {
+        return slots.size();
+    }
+}
@@ -0,0 +1,536 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.kjkoster.zapcat.util.AttributeFormater;
+
+/**
+ * Samples attributes in the background, much more often than Zabbix polls
+ * them, so that <code>jmx.window[]</code> keys can report the spikes between
+ * two polls. Each attribute gets a ring buffer of primitive timestamps and
+ * values. A window key is answered from that buffer, without reading the
+ * mbean.
+ * <p>
+ * An attribute is sampled from the first time a window key asks for it, and
+ * dropped again when no window key asked for it for ten minutes. The number
+ * of sampled attributes is capped, and so is the CPU time that the sampler
+ * thread may use: when a round of sampling took more than its share, the
+ * sampler skips rounds until it is back within budget.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class Sampler {
+    private static final Logger log = Logger.getLogger(Sampler.class);
+
+    private static final long IDLE = TimeUnit.MINUTES.toNanos(10L);
+
+    private final long interval;
+
+    private final int size;
+
+    private final int maxSeries;
+
+    private final int cpuPercent;
+
+    private final Map<String, Series> series = new ConcurrentHashMap<String, Series>();
+
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final AtomicLong rounds = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong cpuTime = new AtomicLong();
+
+    private volatile long started;
+
+    private volatile MBeanServer mBeanServer;
+
+    // guarded by this
+    private ScheduledExecutorService executor = null;
+
+    // only touched by the sampler thread
+    private long resumeAt = 0L;
+
+    /**
+     * Create a new sampler.
+     *
+     * @param mBeanServer
+     *            The mbean server to sample.
+     * @param interval
+     *            The number of milliseconds between two samples.
+     * @param size
+     *            The number of samples to keep per attribute.
+     * @param maxSeries
+     *            The maximum number of attributes to sample.
+     * @param cpuPercent
+     *            The share of one CPU that the sampler may use, in percent.
+     */
+    Sampler(final MBeanServer mBeanServer, final long interval,
+            final int size, final int maxSeries, final int cpuPercent) {
+        this.mBeanServer = mBeanServer;
+        this.interval = Math.max(1L, interval);
+        this.size = Math.max(1, size);
+        this.maxSeries = maxSeries;
+        this.cpuPercent = Math.min(100, Math.max(1, cpuPercent));
+    }
+
+    /**
+     * Sample a different mbean server, dropping all samples.
+     *
+     * @param mBeanServer
+     *            The mbean server to sample.
+     */
+    void setMBeanServer(final MBeanServer mBeanServer) {
+        this.mBeanServer = mBeanServer;
+        series.clear();
+    }
+
+    /**
+     * Stop sampling and drop all samples.
+     */
+    synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        series.clear();
+    }
+
+    private synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "Zabbix-sampler");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        started = System.nanoTime();
+        executor.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    round();
+                } catch (RuntimeException e) {
+                    // never let the executor cancel us
+                    log.warn("sampling failed", e);
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Answer a window key.
+     *
+     * @param plan
+     *            The plan of the window key.
+     * @return The minimum, maximum, average or percentile of the samples in
+     *         the window, or {@link QueryEvaluator#NOTSUPPORTED} if the
+     *         attribute cannot be sampled.
+     */
+    String window(final QueryPlan plan) {
+        Series sampled = series.get(plan.name);
+        if (sampled == null) {
+            sampled = add(plan);
+            if (sampled == null) {
+                return QueryEvaluator.NOTSUPPORTED;
+            }
+        }
+        sampled.polled = System.nanoTime();
+
+        final double[] values = sampled.since(sampled.polled - plan.window);
+        if (values.length == 0) {
+            return QueryEvaluator.NOTSUPPORTED;
+        }
+
+        if ("p".equals(plan.operation)) {
+            final int rank = (int) Math.ceil(plan.percentile / 100.0
+                    * values.length);
+            return AttributeFormater.format(select(values, Math.max(0,
+                    rank - 1)));
+        }
+
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0.0;
+        for (final double value : values) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+        if ("min".equals(plan.operation)) {
+            return AttributeFormater.format(min);
+        }
+        if ("max".equals(plan.operation)) {
+            return AttributeFormater.format(max);
+        }
+        return AttributeFormater.format(sum / values.length);
+    }
+
+    /*
+     * The first sample is taken right away, so that the first poll has
+     * something to report and attributes that cannot be sampled are refused
+     * before they take up a ring buffer.
+     */
+    private Series add(final QueryPlan plan) {
+        final Series created = new Series(plan.objectName, plan.path, size);
+        if (!sample(created, System.nanoTime())) {
+            return null;
+        }
+
+        synchronized (this) {
+            final Series raced = series.get(plan.name);
+            if (raced != null) {
+                return raced;
+            }
+            if (series.size() >= maxSeries) {
+                log.warn("already sampling " + maxSeries
+                        + " attributes, not sampling " + plan.path + " on "
+                        + plan.objectName);
+                return null;
+            }
+            series.put(plan.name, created);
+            start();
+        }
+        return created;
+    }
+
+    private void round() {
+        final long now = System.nanoTime();
+        if (now - resumeAt < 0L) {
+            skipped.incrementAndGet();
+            return;
+        }
+
+        final long before = cpuTime();
+        final Iterator<Series> all = series.values().iterator();
+        while (all.hasNext()) {
+            final Series sampled = all.next();
+            if (now - sampled.polled > IDLE) {
+                all.remove();
+            } else if (!sample(sampled, now)) {
+                failures.incrementAndGet();
+            }
+        }
+        final long used = cpuTime() - before;
+        cpuTime.addAndGet(used);
+        rounds.incrementAndGet();
+
+        // rest long enough that this round stays within our share
+        resumeAt = now + used * 100L / cpuPercent;
+    }
+
+    private long cpuTime() {
+        if (threads.isCurrentThreadCpuTimeSupported()
+                && threads.isThreadCpuTimeEnabled()) {
+            return threads.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    private boolean sample(final Series sampled, final long now) {
+        final Object value;
+        try {
+            value = sampled.path.navigate(JMXHelper.getAttribute(mBeanServer,
+                    sampled.objectName, sampled.path.getAttribute()));
+        } catch (Exception e) {
+            log.debug("unable to sample " + sampled.path + " on "
+                    + sampled.objectName, e);
+            return false;
+        }
+        if (!(value instanceof Number)) {
+            log.debug(sampled.path + " on " + sampled.objectName
+                    + " is not a number");
+            return false;
+        }
+
+        sampled.add(now, ((Number) value).doubleValue());
+        return true;
+    }
+
+    /*
+     * Find the k-th smallest value in linear time on average, shuffling the
+     * array as we go.
+     */
+    private static double select(final double[] values, final int k) {
+        int left = 0;
+        int right = values.length - 1;
+        while (left < right) {
+            final double pivot = values[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    final double swap = values[i];
+                    values[i] = values[j];
+                    values[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return values[k];
+    }
+
+    /**
+     * The samples of one attribute.
+     */
+    private static final class Series {
+        final ObjectName objectName;
+
+        final AttributePath path;
+
+        // guarded by this
+        private final long[] times;
+
+        private final double[] values;
+
+        private int next = 0;
+
+        private int count = 0;
+
+        volatile long polled = System.nanoTime();
+
+        Series(final ObjectName objectName, final AttributePath path,
+                final int size) {
+            this.objectName = objectName;
+            this.path = path;
+            this.times = new long[size];
+            this.values = new double[size];
+        }
+
+        synchronized void add(final long time, final double value) {
+            times[next] = time;
+            values[next] = value;
+            next = (next + 1) % times.length;
+            count = Math.min(count + 1, times.length);
+        }
+
+        synchronized double[] since(final long from) {
+            int found = 0;
+            while (found < count && times[newest(found)] - from >= 0L) {
+                found++;
+            }
+
+            final double[] copy = new double[found];
+            for (int i = 0; i < found; i++) {
+                copy[i] = values[newest(i)];
+            }
+            return copy;
+        }
+
+        // the index of the n-th newest sample
+        private int newest(final int n) {
+            return (next - 1 - n + 2 * times.length) % times.length;
+        }
+    }
+
+    /**
+     * The interface to our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public interface StatisticsMBean {
+        /**
+         * Read the number of attributes that are being sampled.
+         *
+         * @return The number of sampled attributes.
+         */
+        int getSeries();
+
+        /**
+         * Read the maximum number of attributes that may be sampled.
+         *
+         * @return The maximum number of sampled attributes.
+         */
+        int getMaxSeries();
+
+        /**
+         * Read the number of milliseconds between two samples.
+         *
+         * @return The sampling interval.
+         */
+        long getInterval();
+
+        /**
+         * Read the number of samples kept per attribute.
+         *
+         * @return The size of each ring buffer.
+         */
+        int getSize();
+
+        /**
+         * Read the number of sampling rounds.
+         *
+         * @return The number of rounds.
+         */
+        long getRounds();
+
+        /**
+         * Read the number of rounds that were skipped to stay within the CPU
+         * budget.
+         *
+         * @return The number of skipped rounds.
+         */
+        long getSkippedRounds();
+
+        /**
+         * Read the number of samples that could not be taken.
+         *
+         * @return The number of failed samples.
+         */
+        long getFailures();
+
+        /**
+         * Read the CPU time that the sampler used.
+         *
+         * @return The CPU time, in milliseconds.
+         */
+        long getCpuTime();
+
+        /**
+         * Read the share of one CPU that the sampler used since it started.
+         *
+         * @return The CPU usage, in percent.
+         */
+        double getCpuPercent();
+
+        /**
+         * Read the share of one CPU that the sampler may use.
+         *
+         * @return The CPU budget, in percent.
+         */
+        int getCpuLimit();
+    }
+
+    /**
+     * Our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public class Statistics implements StatisticsMBean {
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.StatisticsMBean#getSeries()
+         */
+        public int getSeries() {
+            return series.size();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.StatisticsMBean#getMaxSeries()
+         */
+        public int getMaxSeries() {
+            return maxSeries;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.StatisticsMBean#getInterval()
+         */
+        public long getInterval() {
+            return interval;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.StatisticsMBean#getSize()
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.StatisticsMBean#getRounds()
+         */
+        public long getRounds() {
+            return rounds.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.StatisticsMBean#getSkippedRounds()
+         */
+        public long getSkippedRounds() {
+            return skipped.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.StatisticsMBean#getFailures()
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.StatisticsMBean#getCpuTime()
+         */
+        public long getCpuTime() {
+            return TimeUnit.NANOSECONDS.toMillis(cpuTime.get());
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.StatisticsMBean#getCpuPercent()
+         */
+        public double getCpuPercent() {
+            final long since = started;
+            if (since == 0L) {
+                return 0.0;
+            }
+            return 100.0 * cpuTime.get()
+                    / Math.max(1L, System.nanoTime() - since);
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sampler.StatisticsMBean#getCpuLimit()
+         */
+        public int getCpuLimit() {
+            return cpuPercent;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A non-blocking I/O loop for the Zabbix agent. The loop owns a selector and
+ * does all reading, frame decoding and writing for the connections that are
+ * registered with it. Only the evaluation of the query itself is handed to the
+ * handler executor, so slow peers no longer tie up a handler thread.
+ * <p>
+ * Just like in the blocking mode, connections are closed once one query has
+ * been answered, unless a keep-alive timeout is set. In
+ * that case connections stay open until the peer closes them or until they
+ * have been idle for longer than the timeout. Each connection has at most one
+ * query in evaluation, so pipelined queries are answered in order.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class SelectorLoop implements Runnable {
+    private static final Logger log = Logger.getLogger(SelectorLoop.class);
+
+    private final Selector selector;
+
+    private final QueryEvaluator evaluator;
+
+    private final Executor handlers;
+
+    private final int maxFrame;
+
+    private final int keepAlive;
+
+    // work for the selector thread, queued by other threads
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private volatile boolean stopping = false;
+
+    /**
+     * Create a new selector loop.
+     *
+     * @param evaluator
+     *            The evaluator that works out the responses.
+     * @param handlers
+     *            The executor to run the query evaluation on.
+     * @param maxFrame
+     *            The largest query we accept, in bytes.
+     * @param keepAlive
+     *            The idle time in milliseconds after which we close a
+     *            connection, or 0 to close connections after answering one
+     *            query.
+     * @throws IOException
+     *             When the selector could not be opened.
+     */
+    SelectorLoop(final QueryEvaluator evaluator, final Executor handlers,
+            final int maxFrame, final int keepAlive) throws IOException {
+        this.evaluator = evaluator;
+        this.handlers = handlers;
+        this.maxFrame = maxFrame;
+        this.keepAlive = keepAlive;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hand a freshly accepted connection to this loop. May be called from any
+     * thread.
+     *
+     * @param channel
+     *            The accepted connection.
+     */
+    void register(final SocketChannel channel) {
+        tasks.add(new Runnable() {
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ,
+                            new Connection(maxFrame));
+                } catch (IOException e) {
+                    log.warn("unable to register connection", e);
+                    close(channel);
+                }
+            }
+        });
+        selector.wakeup();
+    }
+
+    /**
+     * Stop the loop. The loop closes its selector and all its connections on
+     * the way out.
+     */
+    void stop() {
+        stopping = true;
+        selector.wakeup();
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    public void run() {
+        long lastSweep = System.currentTimeMillis();
+        try {
+            while (!stopping) {
+                // with keep-alive we wake up regularly to find idle peers
+                selector.select(keepAlive > 0 ? Math.max(keepAlive / 2, 1)
+                        : 0L);
+                runTasks();
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        log.debug("dropping connection", e);
+                        close(key);
+                    }
+                }
+
+                final long now = System.currentTimeMillis();
+                if (keepAlive > 0 && now - lastSweep >= keepAlive / 2) {
+                    closeIdle(now);
+                    lastSweep = now;
+                }
+            }
+        } catch (IOException e) {
+            if (!stopping) {
+                log.error("caught exception, exiting", e);
+            }
+        } finally {
+            for (final SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore, we're going down anyway...
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void read(final SelectionKey key) throws IOException {
+        final Connection connection = (Connection) key.attachment();
+        final SocketChannel channel = (SocketChannel) key.channel();
+
+        final int read = channel.read(connection.decoder.buffer());
+        connection.lastActive = System.currentTimeMillis();
+        final String request = connection.decoder.next(read < 0);
+        if (request == null) {
+            if (read < 0) {
+                close(key);
+            }
+            return;
+        }
+
+        dispatch(key, request, connection.decoder.isFramed()
+                || QueryHandler.isProtocol14());
+    }
+
+    /*
+     * Called when a response has been written. Either start on the next
+     * pipelined query, wait for more queries or hang up.
+     */
+    private void next(final SelectionKey key) throws IOException {
+        final Connection connection = (Connection) key.attachment();
+        FrameEncoder.release(connection.out);
+        connection.out = null;
+        connection.lastActive = System.currentTimeMillis();
+
+        final String request = keepAlive > 0 ? connection.decoder.next(false)
+                : null;
+        if (request != null) {
+            dispatch(key, request, connection.decoder.isFramed()
+                    || QueryHandler.isProtocol14());
+        } else if (keepAlive > 0) {
+            key.interestOps(SelectionKey.OP_READ);
+        } else {
+            close(key);
+        }
+    }
+
+    private void closeIdle(final long now) {
+        for (final SelectionKey key : selector.keys()) {
+            final Connection connection = (Connection) key.attachment();
+            // connections with a query in evaluation are not idle
+            if (key.isValid() && key.interestOps() == SelectionKey.OP_READ
+                    && now - connection.lastActive >= keepAlive) {
+                log.debug("closing idle connection");
+                close(key);
+            }
+        }
+    }
+
+    private void dispatch(final SelectionKey key, final String request,
+            final boolean framed) {
+        if (log.isDebugEnabled()) {
+            log.debug("received '" + request + "'");
+        }
+
+        // one query at a time per connection, so stop reading for now
+        key.interestOps(0);
+
+        try {
+            handlers.execute(new Runnable() {
+                public void run() {
+                    ByteBuffer out = null;
+                    try {
+                        out = answer(request, framed);
+                    } catch (Throwable t) {
+                        // never leave the connection without an answer
+                        log.error("error handling query '" + request + "'", t);
+                        out = FrameEncoder.encode(QueryEvaluator.NOTSUPPORTED,
+                                framed);
+                    } finally {
+                        reply(key, out);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("handlers are shutting down, dropping query", e);
+            close(key);
+        }
+    }
+
+    private ByteBuffer answer(final String request, final boolean framed) {
+        String response = evaluator.response(request);
+        // make sure we can send
+        if (response == null) {
+            response = "";
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("sending '" + response + "'");
+        }
+        return FrameEncoder.encode(response, framed);
+    }
+
+    /*
+     * Hand the answer to the selector thread, or hang up if there is none.
+     */
+    private void reply(final SelectionKey key, final ByteBuffer out) {
+        tasks.add(new Runnable() {
+            public void run() {
+                if (out == null) {
+                    close(key);
+                } else if (key.isValid()) {
+                    ((Connection) key.attachment()).out = out;
+                    key.interestOps(SelectionKey.OP_WRITE);
+                } else {
+                    FrameEncoder.release(out);
+                }
+            }
+        });
+        selector.wakeup();
+    }
+
+    private void write(final SelectionKey key) throws IOException {
+        final Connection connection = (Connection) key.attachment();
+        ((SocketChannel) key.channel()).write(connection.out);
+        if (!connection.out.hasRemaining()) {
+            if (log.isDebugEnabled()) {
+                connection.out.flip();
+                log.debug("sent bytes "
+                        + FrameEncoder.hexdump(connection.out));
+            }
+            next(key);
+        }
+    }
+
+    private static void close(final SelectionKey key) {
+        final Connection connection = (Connection) key.attachment();
+        if (connection != null && connection.out != null) {
+            FrameEncoder.release(connection.out);
+            connection.out = null;
+        }
+        key.cancel();
+        close((SocketChannel) key.channel());
+    }
+
+    private static void close(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore, we're done with this one anyway...
+        }
+    }
+
+    /**
+     * The per-connection state.
+     */
+    private static final class Connection {
+        final FrameDecoder decoder;
+
+        ByteBuffer out = null;
+
+        long lastActive = System.currentTimeMillis();
+
+        Connection(final int maxFrame) {
+            decoder = new FrameDecoder(maxFrame);
+        }
+    }
+}
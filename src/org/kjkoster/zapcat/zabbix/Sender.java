@@ -17,31 +17,64 @@ package org.kjkoster.zapcat.zabbix;
  */
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 import org.kjkoster.zapcat.util.Base64;
+import org.kjkoster.zapcat.util.JsonWriter;
 
 
 /**
  * A daemon thread that waits for and forwards data items to a Zabbix server.
+ * <p>
+ * By default items are sent in batches, using the JSON "sender data" protocol
+ * of Zabbix 1.8 and later. The sender takes whatever is in the queue, up to
+ * the batch size, waiting at most the linger time for more items to come in.
+ * The connection is kept open between batches for as long as the server
+ * allows it. Servers that close the connection after each batch are detected
+ * and from then on get a fresh connection for every batch.
+ * <p>
+ * The legacy XML protocol of Zabbix 1.4 and older sends each item over its
+ * own connection.
  * 
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 final class Sender extends Thread {
     private static final Logger log = Logger.getLogger(Sender.class);
 
-    private final BlockingQueue<Item> queue;
+    private final TrapQueue queue;
 
     private final InetAddress zabbixServer;
 
     private final int zabbixPort;
 
+    private final boolean json;
+
+    private final int batchSize;
+
+    private final long linger;
+
+    private final Spool spool;
+
+    private final int replayRate;
+
+    private final SenderPool pool;
+
     private static final String head = "<req><host>";
 
     private static final String leftmiddle = "</host><key>";
@@ -50,10 +83,48 @@ final class Sender extends Thread {
 
     private static final String tail = "</data></req>";
 
+    private static final Pattern INFO = Pattern.compile(
+            "processed:?\\s*(\\d+);?\\s*failed:?\\s*(\\d+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern FIELD = Pattern
+            .compile("\"(response|info)\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+
     private boolean stopping = false;
 
     private static final int TIMEOUT = 5 * 1000;
 
+    // how long we leave an unreachable server alone when we have a spool
+    private static final long RETRY = TimeUnit.SECONDS.toNanos(5L);
+
+    // how often we replay spooled items when there is nothing else to do
+    private static final long REPLAY_TICK = 100L;
+
+    // only used by the sender thread
+    private Socket connection = null;
+
+    private boolean reuse = true;
+
+    private boolean reused = false;
+
+    private long retryAt = System.nanoTime();
+
+    private double tokens = 0.0;
+
+    private volatile boolean healthy = true;
+
+    private final AtomicLong sentBatches = new AtomicLong();
+
+    private final AtomicLong sentItems = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong failedOver = new AtomicLong();
+
+    private long refilled = System.nanoTime();
+
     /**
      * Create a new background sender.
      * 
@@ -63,9 +134,27 @@ final class Sender extends Thread {
      *            The name or IP of the machine to send the data to.
      * @param zabbixPort
      *            The port number on that machine.
+     * @param json
+     *            <code>true</code> to send batches using the JSON protocol,
+     *            <code>false</code> to send single items using the legacy XML
+     *            protocol.
+     * @param batchSize
+     *            The maximum number of items per batch.
+     * @param linger
+     *            The number of milliseconds to wait for a batch to fill up.
+     * @param spool
+     *            The spool for items that could not be sent, or
+     *            <code>null</code> to drop them.
+     * @param replayRate
+     *            The maximum number of spooled items to send per second.
+     * @param pool
+     *            The pool that this sender is part of, to hand items to when
+     *            the server cannot be reached.
      */
-    public Sender(final BlockingQueue<Item> queue,
-            final InetAddress zabbixServer, final int zabbixPort) {
+    public Sender(final TrapQueue queue,
+            final InetAddress zabbixServer, final int zabbixPort,
+            final boolean json, final int batchSize, final long linger,
+            final Spool spool, final int replayRate, final SenderPool pool) {
         super("Zabbix-sender");
         setDaemon(true);
 
@@ -73,6 +162,23 @@ final class Sender extends Thread {
 
         this.zabbixServer = zabbixServer;
         this.zabbixPort = zabbixPort;
+
+        this.json = json;
+        this.batchSize = json ? Math.max(1, batchSize) : 1;
+        this.linger = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, linger));
+
+        this.spool = spool;
+        this.replayRate = Math.max(1, replayRate);
+        this.pool = pool;
+    }
+
+    /**
+     * Check whether the server could be reached the last time we tried.
+     * 
+     * @return <code>true</code> if the server is up, as far as we know.
+     */
+    boolean isHealthy() {
+        return healthy;
     }
 
     /**
@@ -88,28 +194,405 @@ final class Sender extends Thread {
      */
     @Override
     public void run() {
+        final List<Item> batch = new ArrayList<Item>(batchSize);
         while (!stopping) {
             try {
-                final Item item = queue.take();
+                final boolean idle = healthy
+                        && (spool == null || spool.isEmpty());
+                final Item first = idle ? queue.take() : queue.poll(
+                        REPLAY_TICK, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    fill(batch);
 
-                send(item.getHost(), item.getKey(), item.getValue());
+                    send(batch);
+                    batch.clear();
+                }
+
+                replay();
+                probe();
             } catch (InterruptedException e) {
                 if (!stopping) {
                     log.warn("ignoring exception", e);
                 }
             } catch (Exception e) {
                 log.warn("ignoring exception", e);
+                batch.clear();
             }
         }
 
-        // drain the queue
-        while (queue.size() > 0) {
-            final Item item = queue.remove();
+        // the interrupt did its job, and would only break file I/O from here
+        Thread.interrupted();
+
+        // drain the queue, including what we were collecting when stopped
+        do {
+            queue.drainTo(batch, batchSize - batch.size());
+            if (batch.isEmpty()) {
+                break;
+            }
+
             try {
-                send(item.getHost(), item.getKey(), item.getValue());
+                send(batch);
             } catch (Exception e) {
                 log.warn("ignoring exception", e);
             }
+            batch.clear();
+        } while (true);
+
+        disconnect();
+        if (spool != null) {
+            spool.close();
+        }
+    }
+
+    private void fill(final List<Item> batch) throws InterruptedException {
+        queue.drainTo(batch, batchSize - batch.size());
+        if (linger == 0L) {
+            return;
+        }
+
+        final long until = System.nanoTime() + linger;
+        while (batch.size() < batchSize) {
+            final long wait = until - System.nanoTime();
+            if (wait <= 0L) {
+                return;
+            }
+            final Item item = queue.poll(wait, TimeUnit.NANOSECONDS);
+            if (item == null) {
+                return;
+            }
+            batch.add(item);
+            queue.drainTo(batch, batchSize - batch.size());
+        }
+    }
+
+    /*
+     * Send items that came off the queue. While the server is unreachable they
+     * go to the spool, if we have one.
+     */
+    private void send(final List<Item> batch) throws IOException {
+        final List<Item> items = new ArrayList<Item>(batch.size());
+        for (final Item item : batch) {
+            try {
+                items.add(item.resolve());
+            } catch (Exception e) {
+                log.warn("unable to read value for key '" + item.getKey()
+                        + "'", e);
+            }
+        }
+        if (items.isEmpty()) {
+            return;
+        }
+
+        if (!healthy && retryAt - System.nanoTime() > 0L) {
+            if (failover(items)) {
+                return;
+            }
+            if (spool != null) {
+                spool.append(items);
+                return;
+            }
+        }
+
+        try {
+            deliver(items, false);
+        } catch (IOException e) {
+            down(e);
+            if (failover(items)) {
+                return;
+            }
+            if (spool == null) {
+                throw e;
+            }
+            spool.append(items);
+        }
+    }
+
+    private boolean failover(final List<Item> items) {
+        // the other senders may have stopped already
+        if (stopping || !pool.failover(this, items)) {
+            return false;
+        }
+        failedOver.addAndGet(items.size());
+        return true;
+    }
+
+    private void down(final IOException e) {
+        failures.incrementAndGet();
+        retryAt = System.nanoTime() + RETRY;
+        if (healthy) {
+            healthy = false;
+            log.warn("unable to reach " + zabbixServer + ":" + zabbixPort
+                    + ", marking it as down: " + e);
+        }
+    }
+
+    /*
+     * See whether a server that is down accepts connections again. Replaying
+     * spooled items does the same, so we only need this without a backlog.
+     */
+    private void probe() {
+        if (healthy || retryAt - System.nanoTime() > 0L
+                || (spool != null && !spool.isEmpty())) {
+            return;
+        }
+
+        try {
+            connect();
+            healthy = true;
+            log.info(zabbixServer + ":" + zabbixPort + " is back");
+        } catch (IOException e) {
+            retryAt = System.nanoTime() + RETRY;
+        } finally {
+            disconnect();
+        }
+    }
+
+    /*
+     * Send the oldest spooled items, if the server is reachable and the
+     * replay rate allows it.
+     */
+    private void replay() {
+        if (spool == null || spool.isEmpty()) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        tokens = Math.min(replayRate, tokens + (now - refilled) * replayRate
+                / (double) TimeUnit.SECONDS.toNanos(1L));
+        refilled = now;
+        final int allowed = (int) Math.min(batchSize, tokens);
+        if (allowed < 1 || retryAt - now > 0L) {
+            return;
+        }
+
+        final List<Item> items = spool.peek(allowed);
+        try {
+            deliver(items, true);
+            spool.commit(items.size());
+            tokens -= items.size();
+        } catch (IOException e) {
+            log.debug("unable to replay spooled items", e);
+            down(e);
+        }
+    }
+
+    private void deliver(final List<Item> items, final boolean clocks)
+            throws IOException {
+        if (!json) {
+            for (final Item item : items) {
+                send(item.getHost(), item.getKey(), item.getLiteral());
+            }
+            up(items.size());
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+
+        final JsonWriter message = new JsonWriter(new StringBuilder(
+                64 * items.size())).beginObject();
+        message.member("request", "sender data");
+        message.name("data").beginArray();
+        for (final Item item : items) {
+            message.beginObject();
+            message.member("host", item.getHost());
+            message.member("key", item.getKey());
+            message.member("value", item.getLiteral());
+            if (clocks) {
+                message.member("clock", item.getClock() / 1000L);
+            }
+            message.endObject();
+        }
+        message.endArray().endObject();
+
+        if (log.isDebugEnabled()) {
+            log.debug("sending " + message);
+        }
+
+        final ByteBuffer frame = FrameEncoder.encode(message.toString(), true);
+        try {
+            final String response = exchange(frame);
+            if (log.isDebugEnabled()) {
+                log.debug("received " + response);
+            }
+            check(response, items.size());
+        } finally {
+            FrameEncoder.release(frame);
+        }
+        up(items.size());
+
+        log.info("send() " + items.size() + " items in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /*
+     * Write a frame and read the response. A connection that we kept open may
+     * have been closed by the server in the mean time. We only send the data
+     * again over a fresh connection when we know that the server never saw
+     * it: when writing failed, or when the connection closed before the
+     * response started. Anything else, such as a timeout while waiting for
+     * the response, may have been processed already.
+     */
+    private String exchange(final ByteBuffer frame) throws IOException {
+        final boolean fresh = connection == null;
+        try {
+            final String response = exchange(connect(), frame);
+            if (!fresh) {
+                reused = true;
+            }
+            return response;
+        } catch (Unsent e) {
+            if (fresh) {
+                throw e.getCause();
+            }
+            if (e.getCause() instanceof EOFException && !reused) {
+                log.debug("server closes connections after each batch, "
+                        + "not reusing them");
+                reuse = false;
+            }
+            log.debug("kept connection failed, reconnecting", e.getCause());
+        }
+
+        try {
+            return exchange(connect(), frame);
+        } catch (Unsent e) {
+            throw e.getCause();
+        }
+    }
+
+    private String exchange(final Socket zabbix, final ByteBuffer frame)
+            throws IOException {
+        boolean keep = false;
+        try {
+            try {
+                final OutputStream out = zabbix.getOutputStream();
+                out.write(frame.array(), frame.position(), frame.remaining());
+                out.flush();
+            } catch (IOException e) {
+                throw new Unsent(e);
+            }
+
+            final InputStream in = zabbix.getInputStream();
+            final byte[] header = new byte[FrameDecoder.HEADER_LENGTH];
+            final int first = in.read();
+            if (first < 0) {
+                throw new Unsent(new EOFException(
+                        "connection closed before the response"));
+            }
+            header[0] = (byte) first;
+            readFully(in, header, 1);
+            for (int i = 0; i < FrameDecoder.ZBXD.length; i++) {
+                if (header[i] != FrameDecoder.ZBXD[i]) {
+                    throw new IOException("bad response header");
+                }
+            }
+            long length = 0L;
+            for (int i = FrameDecoder.HEADER_LENGTH - 1; i >= FrameDecoder.ZBXD.length; i--) {
+                length = (length << 8) | (header[i] & 0xff);
+            }
+            if (length < 0L || length > 64 * 1024) {
+                throw new IOException("bad response length " + length);
+            }
+            final byte[] body = new byte[(int) length];
+            readFully(in, body);
+
+            keep = reuse;
+            return new String(body, "UTF-8");
+        } finally {
+            if (!keep) {
+                disconnect();
+            }
+        }
+    }
+
+    private static void readFully(final InputStream in, final byte[] bytes)
+            throws IOException {
+        readFully(in, bytes, 0);
+    }
+
+    private static void readFully(final InputStream in, final byte[] bytes,
+            final int offset) throws IOException {
+        int at = offset;
+        while (at < bytes.length) {
+            final int read = in.read(bytes, at, bytes.length - at);
+            if (read < 0) {
+                throw new EOFException("connection closed after " + at
+                        + " bytes");
+            }
+            at += read;
+        }
+    }
+
+    private Socket connect() throws IOException {
+        if (connection == null) {
+            final Socket zabbix = new Socket();
+            try {
+                zabbix.connect(new InetSocketAddress(zabbixServer, zabbixPort),
+                        TIMEOUT);
+            } catch (IOException e) {
+                zabbix.close();
+                throw e;
+            }
+            connection = zabbix;
+            connection.setSoTimeout(TIMEOUT);
+            connection.setTcpNoDelay(true);
+        }
+        return connection;
+    }
+
+    private void disconnect() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                log.debug("ignoring exception", e);
+            }
+            connection = null;
+        }
+    }
+
+    private void up(final int sent) {
+        sentBatches.incrementAndGet();
+        sentItems.addAndGet(sent);
+        if (!healthy) {
+            healthy = true;
+            log.info(zabbixServer + ":" + zabbixPort + " is back");
+        }
+    }
+
+    /*
+     * Zabbix answers with something like {"response":"success","info":
+     * "processed: 3; failed: 0; total: 3; seconds spent: 0.000055"}. Older
+     * servers phrase the info as "Processed 3 Failed 0 Total 3".
+     */
+    private void check(final String response, final int sent) {
+        String status = null;
+        String info = null;
+        final Matcher field = FIELD.matcher(response);
+        while (field.find()) {
+            if ("response".equals(field.group(1))) {
+                status = field.group(2);
+            } else {
+                info = field.group(2);
+            }
+        }
+
+        if (!"success".equals(status)) {
+            log.warn("received unexpected response '" + response + "' for "
+                    + sent + " items");
+            return;
+        }
+
+        final Matcher counts = info == null ? null : INFO.matcher(info);
+        if (counts == null || !counts.find()) {
+            log.warn("unable to parse response '" + response + "'");
+            return;
+        }
+        final int failed = Integer.parseInt(counts.group(2));
+        if (failed > 0) {
+            rejected.addAndGet(failed);
+            log.warn("server failed " + failed + " of " + sent
+                    + " items, processed " + counts.group(1) + ": " + info);
         }
     }
 
@@ -164,4 +647,135 @@ final class Sender extends Thread {
 
         log.info("send() " + (System.currentTimeMillis() - start) + " ms");
     }
+
+    /**
+     * A failure that the server cannot have seen any of our data for.
+     */
+    private static final class Unsent extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Unsent(final IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * The interface to our JMX representation.
+     * 
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public interface StatisticsMBean {
+        /**
+         * Read the server or proxy that this sender sends to.
+         * 
+         * @return The destination, as host:port.
+         */
+        String getDestination();
+
+        /**
+         * Check whether the destination could be reached the last time we
+         * tried.
+         * 
+         * @return <code>true</code> if the destination is up.
+         */
+        boolean isHealthy();
+
+        /**
+         * Read the number of batches that were sent.
+         * 
+         * @return The number of batches.
+         */
+        long getBatches();
+
+        /**
+         * Read the number of items that were sent.
+         * 
+         * @return The number of items.
+         */
+        long getItems();
+
+        /**
+         * Read the number of times sending failed because the destination
+         * could not be reached.
+         * 
+         * @return The number of failures.
+         */
+        long getFailures();
+
+        /**
+         * Read the number of items that the destination reported as failed.
+         * 
+         * @return The number of rejected items.
+         */
+        long getRejected();
+
+        /**
+         * Read the number of items that were handed to other destinations
+         * because this one was down.
+         * 
+         * @return The number of items failed over.
+         */
+        long getFailedOver();
+    }
+
+    /**
+     * Our JMX representation.
+     * 
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public class Statistics implements StatisticsMBean {
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sender.StatisticsMBean#getDestination()
+         */
+        public String getDestination() {
+            return zabbixServer.getHostName() + ":" + zabbixPort;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sender.StatisticsMBean#isHealthy()
+         */
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sender.StatisticsMBean#getBatches()
+         */
+        public long getBatches() {
+            return sentBatches.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sender.StatisticsMBean#getItems()
+         */
+        public long getItems() {
+            return sentItems.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sender.StatisticsMBean#getFailures()
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sender.StatisticsMBean#getRejected()
+         */
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Sender.StatisticsMBean#getFailedOver()
+         */
+        public long getFailedOver() {
+            return failedOver.get();
+        }
+    }
 }
@@ -0,0 +1,148 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spreads trapped items over one or more Zabbix servers or proxies. Each
+ * destination has a queue and a sending thread of its own. Items are routed by
+ * a hash of their host, so that all items of one host go through the same
+ * proxy, or by a hash of their key.
+ * <p>
+ * Destinations that fail to send are marked as down until they accept a
+ * connection again. Items that would be routed to a destination that is down
+ * go to the next destination that is up instead. Batches that a destination
+ * failed to send are handed to a destination that is up, if there is one.
+ * <p>
+ * Destinations are added before the pool is started and never change after
+ * that.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class SenderPool {
+    private final boolean byKey;
+
+    private final List<TrapQueue> queues = new ArrayList<TrapQueue>();
+
+    private final List<Sender> senders = new ArrayList<Sender>();
+
+    /**
+     * Create a new, empty pool.
+     *
+     * @param byKey
+     *            <code>true</code> to route items by their key,
+     *            <code>false</code> to route them by their host.
+     */
+    SenderPool(final boolean byKey) {
+        this.byKey = byKey;
+    }
+
+    /**
+     * Add a destination.
+     *
+     * @param queue
+     *            The queue that feeds the destination's sender.
+     * @param sender
+     *            The sender for the destination.
+     */
+    void add(final TrapQueue queue, final Sender sender) {
+        queues.add(queue);
+        senders.add(sender);
+    }
+
+    /**
+     * Start sending.
+     */
+    void start() {
+        for (final Sender sender : senders) {
+            sender.start();
+        }
+    }
+
+    /**
+     * Stop all senders, waiting for them to drain their queues.
+     */
+    void stop() {
+        for (final Sender sender : senders) {
+            sender.stopping();
+        }
+        for (final Sender sender : senders) {
+            try {
+                sender.join();
+            } catch (InterruptedException e) {
+                // ignore, we're done anyway...
+            }
+        }
+    }
+
+    /**
+     * Find the queue for an item.
+     *
+     * @param host
+     *            The host configuration of the item.
+     * @param key
+     *            The key of the item.
+     * @return The queue of the destination that the item should go to.
+     */
+    TrapQueue route(final String host, final String key) {
+        final int size = queues.size();
+        if (size == 1) {
+            return queues.get(0);
+        }
+
+        final String shard = byKey ? key : host;
+        final int first = ((shard == null ? 0 : shard.hashCode()) & 0x7fffffff)
+                % size;
+        for (int i = 0; i < size; i++) {
+            final int candidate = (first + i) % size;
+            if (senders.get(candidate).isHealthy()) {
+                return queues.get(candidate);
+            }
+        }
+        // all down, so there is no better place to wait
+        return queues.get(first);
+    }
+
+    /**
+     * Hand items that a sender could not send to another destination that is
+     * up.
+     *
+     * @param from
+     *            The sender that failed.
+     * @param items
+     *            The items it failed to send.
+     * @return <code>true</code> if the items were handed over,
+     *         <code>false</code> if there is no other destination that is up.
+     */
+    boolean failover(final Sender from, final List<Item> items) {
+        final int size = senders.size();
+        final int start = senders.indexOf(from);
+        for (int i = 1; i < size; i++) {
+            final int candidate = (start + i) % size;
+            if (senders.get(candidate).isHealthy()) {
+                final TrapQueue queue = queues.get(candidate);
+                for (final Item item : items) {
+                    queue.offer(item);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,463 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Serves the attributes of "hot" mbeans from a snapshot, instead of reading
+ * them when Zabbix polls. The hot mbeans are the ones that match one of the
+ * patterns given to the agent. A scheduler refreshes the snapshot with one
+ * <code>getAttributes()</code> call per hot mbean per tick and publishes it
+ * as a whole, so a poll costs a map lookup no matter how slow the getters
+ * are, and pollers never wait on locks inside the mbeans.
+ * <p>
+ * Only attributes that were actually polled are refreshed. The first poll of
+ * an attribute is answered live and adds the attribute to the next refresh.
+ * Mbeans that were not polled for ten minutes are no longer refreshed.
+ * <p>
+ * Values that are more than ten refresh intervals old are not served. When a
+ * getter hangs and holds up the refresh, polls fall back to reading live
+ * instead of getting the same old value forever.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class Snapshots {
+    private static final Logger log = Logger.getLogger(Snapshots.class);
+
+    private static final long IDLE = TimeUnit.MINUTES.toNanos(10L);
+
+    // the number of intervals after which a value is too old to serve
+    private static final long STALE = 10L;
+
+    // we remember whether names are hot, but not for an unbounded number
+    private static final int MAX_DECISIONS = 10000;
+
+    private static final Snapshot EMPTY = new Snapshot(
+            Collections.<ObjectName, Values> emptyMap());
+
+    private final ObjectName[] patterns;
+
+    private final long interval;
+
+    private final long maxAge;
+
+    private final Map<ObjectName, Boolean> decisions = new ConcurrentHashMap<ObjectName, Boolean>();
+
+    private final Map<ObjectName, Hot> hot = new ConcurrentHashMap<ObjectName, Hot>();
+
+    private final AtomicLong refreshes = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile Snapshot snapshot = EMPTY;
+
+    private volatile long refreshTime = 0L;
+
+    private volatile MBeanServer mBeanServer;
+
+    // guarded by this
+    private ScheduledExecutorService executor = null;
+
+    /**
+     * Create a new set of snapshots.
+     *
+     * @param mBeanServer
+     *            The mbean server to read.
+     * @param patterns
+     *            The object name patterns of the hot mbeans, separated by
+     *            semicolons, or <code>null</code> if no mbeans are hot.
+     * @param interval
+     *            The number of milliseconds between two refreshes.
+     */
+    Snapshots(final MBeanServer mBeanServer, final String patterns,
+            final long interval) {
+        this.mBeanServer = mBeanServer;
+        this.patterns = parse(patterns);
+        this.interval = Math.max(1L, interval);
+        this.maxAge = TimeUnit.MILLISECONDS.toNanos(this.interval * STALE);
+    }
+
+    private static ObjectName[] parse(final String patterns) {
+        final List<ObjectName> parsed = new ArrayList<ObjectName>();
+        if (patterns != null) {
+            for (final String pattern : patterns.split(";")) {
+                if (pattern.trim().length() == 0) {
+                    continue;
+                }
+                try {
+                    parsed.add(new ObjectName(pattern.trim()));
+                } catch (MalformedObjectNameException e) {
+                    log.warn("ignoring bad hot pattern " + pattern, e);
+                }
+            }
+        }
+        return parsed.toArray(new ObjectName[parsed.size()]);
+    }
+
+    /**
+     * Read from a different mbean server, dropping the snapshot.
+     *
+     * @param mBeanServer
+     *            The mbean server to read.
+     */
+    void setMBeanServer(final MBeanServer mBeanServer) {
+        this.mBeanServer = mBeanServer;
+        hot.clear();
+        snapshot = EMPTY;
+    }
+
+    /**
+     * Stop refreshing and drop the snapshot.
+     */
+    synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        hot.clear();
+        snapshot = EMPTY;
+    }
+
+    /**
+     * Look up an attribute in the snapshot.
+     *
+     * @param objectName
+     *            The mbean to read.
+     * @param path
+     *            The attribute path.
+     * @return The formatted value from the snapshot, or <code>null</code> if
+     *         it has to be read live.
+     */
+    String get(final ObjectName objectName, final AttributePath path) {
+        if (!isHot(objectName)) {
+            return null;
+        }
+
+        final Values values = snapshot.mbeans.get(objectName);
+        want(objectName, path.getAttribute());
+        if (!serves(values, path)) {
+            return null;
+        }
+        try {
+            return path.resolve(values.values.get(path.getAttribute()));
+        } catch (RuntimeException e) {
+            log.debug("no attribute named " + path + " on bean named "
+                    + objectName, e);
+            return QueryEvaluator.NOTSUPPORTED;
+        }
+    }
+
+    /**
+     * Work out how old the value of an attribute is.
+     *
+     * @param objectName
+     *            The mbean to read.
+     * @param path
+     *            The attribute path.
+     * @return The age of the value in the snapshot in milliseconds, or zero
+     *         if it would be read live.
+     */
+    long age(final ObjectName objectName, final AttributePath path) {
+        if (!isHot(objectName)) {
+            return 0L;
+        }
+
+        final Values values = snapshot.mbeans.get(objectName);
+        if (!serves(values, path)) {
+            return 0L;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - values.taken);
+    }
+
+    private boolean serves(final Values values, final AttributePath path) {
+        return values != null && values.values.containsKey(path.getAttribute())
+                && System.nanoTime() - values.taken <= maxAge;
+    }
+
+    private boolean isHot(final ObjectName objectName) {
+        if (patterns.length == 0) {
+            return false;
+        }
+
+        Boolean decision = decisions.get(objectName);
+        if (decision == null) {
+            decision = Boolean.FALSE;
+            for (final ObjectName pattern : patterns) {
+                if (pattern.apply(objectName)) {
+                    decision = Boolean.TRUE;
+                    break;
+                }
+            }
+            if (decisions.size() >= MAX_DECISIONS) {
+                decisions.clear();
+            }
+            decisions.put(objectName, decision);
+        }
+        return decision;
+    }
+
+    private void want(final ObjectName objectName, final String attribute) {
+        Hot wanted = hot.get(objectName);
+        if (wanted == null) {
+            synchronized (this) {
+                wanted = hot.get(objectName);
+                if (wanted == null) {
+                    wanted = new Hot();
+                    hot.put(objectName, wanted);
+                    start();
+                }
+            }
+        }
+        wanted.polled = System.nanoTime();
+        if (!wanted.attributes.contains(attribute)) {
+            synchronized (wanted) {
+                if (wanted.attributes.add(attribute)) {
+                    wanted.names = wanted.attributes.toArray(new String[0]);
+                }
+            }
+        }
+    }
+
+    private synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable,
+                                "Zabbix-snapshot");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    // never let the executor cancel us
+                    log.warn("refreshing the snapshot failed", e);
+                }
+            }
+        }, 0L, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void refresh() {
+        final long start = System.nanoTime();
+        final MBeanServer server = mBeanServer;
+        final Map<ObjectName, Values> mbeans = new HashMap<ObjectName, Values>();
+        final Iterator<Map.Entry<ObjectName, Hot>> all = hot.entrySet()
+                .iterator();
+        while (all.hasNext()) {
+            final Map.Entry<ObjectName, Hot> entry = all.next();
+            if (start - entry.getValue().polled > IDLE) {
+                all.remove();
+                continue;
+            }
+
+            final AttributeList list;
+            try {
+                list = server.getAttributes(entry.getKey(),
+                        entry.getValue().names);
+            } catch (InstanceNotFoundException e) {
+                log.debug("no bean named " + entry.getKey(), e);
+                all.remove();
+                failures.incrementAndGet();
+                continue;
+            } catch (Exception e) {
+                log.debug("unable to read " + entry.getKey(), e);
+                failures.incrementAndGet();
+                continue;
+            }
+
+            final Map<String, Object> values = new HashMap<String, Object>();
+            for (final Object attribute : list) {
+                values.put(((Attribute) attribute).getName(),
+                        ((Attribute) attribute).getValue());
+            }
+            mbeans.put(entry.getKey(), new Values(values, System.nanoTime()));
+        }
+
+        snapshot = new Snapshot(mbeans);
+        refreshes.incrementAndGet();
+        refreshTime = System.nanoTime() - start;
+    }
+
+    /**
+     * The attributes that were polled on one hot mbean.
+     */
+    private static final class Hot {
+        final Set<String> attributes = Collections
+                .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        volatile String[] names = new String[0];
+
+        volatile long polled;
+    }
+
+    /**
+     * The values of one mbean, as they were at one moment.
+     */
+    private static final class Values {
+        final Map<String, Object> values;
+
+        final long taken;
+
+        Values(final Map<String, Object> values, final long taken) {
+            this.values = values;
+            this.taken = taken;
+        }
+    }
+
+    /**
+     * The values of all hot mbeans. Never changed once published.
+     */
+    private static final class Snapshot {
+        final Map<ObjectName, Values> mbeans;
+
+        Snapshot(final Map<ObjectName, Values> mbeans) {
+            this.mbeans = mbeans;
+        }
+    }
+
+    /**
+     * The interface to our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public interface StatisticsMBean {
+        /**
+         * List the object name patterns of the hot mbeans.
+         *
+         * @return The patterns.
+         */
+        Collection<String> getPatterns();
+
+        /**
+         * Read the number of hot mbeans that are refreshed.
+         *
+         * @return The number of refreshed mbeans.
+         */
+        int getMBeans();
+
+        /**
+         * Read the number of milliseconds between two refreshes.
+         *
+         * @return The refresh interval.
+         */
+        long getInterval();
+
+        /**
+         * Read the number of refreshes so far.
+         *
+         * @return The number of refreshes.
+         */
+        long getRefreshes();
+
+        /**
+         * Read the number of mbeans that could not be read during a refresh.
+         *
+         * @return The number of failed reads.
+         */
+        long getFailures();
+
+        /**
+         * Read how long the last refresh took.
+         *
+         * @return The duration of the last refresh, in milliseconds.
+         */
+        double getRefreshTime();
+    }
+
+    /**
+     * Our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public class Statistics implements StatisticsMBean {
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Snapshots.StatisticsMBean#getPatterns()
+         */
+        public Collection<String> getPatterns() {
+            final Collection<String> names = new ArrayList<String>();
+            for (final ObjectName pattern : patterns) {
+                names.add(pattern.toString());
+            }
+            return names;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Snapshots.StatisticsMBean#getMBeans()
+         */
+        public int getMBeans() {
+            return hot.size();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Snapshots.StatisticsMBean#getInterval()
+         */
+        public long getInterval() {
+            return interval;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Snapshots.StatisticsMBean#getRefreshes()
+         */
+        public long getRefreshes() {
+            return refreshes.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Snapshots.StatisticsMBean#getFailures()
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Snapshots.StatisticsMBean#getRefreshTime()
+         */
+        public double getRefreshTime() {
+            return refreshTime / 1000000.0;
+        }
+    }
+}
@@ -0,0 +1,622 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A journal on disk for items that could not be sent, so that an outage of
+ * the Zabbix server does not lose data or fill up the heap. Items are
+ * appended, with the time they were trapped, to memory-mapped segment files
+ * in the spool directory. They are read back in order once the server can be
+ * reached again.
+ * <p>
+ * Each segment starts with a header that holds how far it was replayed, so
+ * that replay picks up where it left off after a restart. Records are written
+ * body first and length last, so a record that was cut short by a crash reads
+ * as the end of the segment. Records are checked field by field when a
+ * segment is opened, and the first one that does not add up ends it.
+ * Segments that were picked up after a restart are never appended to, since
+ * the rest of a torn record may still follow their end. Fully replayed
+ * segments are deleted. When the
+ * spool reaches its size limit, the oldest segment is dropped to make room.
+ * <p>
+ * Each trapper needs a spool directory of its own. A spool locks its
+ * directory, and refuses to open a directory that another spool holds, in
+ * this JVM or in another one. Spools are not thread safe; only the sender
+ * uses them.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class Spool {
+    private static final Logger log = Logger.getLogger(Spool.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x5a435350; // "ZCSP"
+
+    private static final int VERSION = 1;
+
+    // magic, version, replayed offset and a spare int
+    private static final int HEADER = 16;
+
+    private static final int READ_OFFSET = 8;
+
+    private static final String SUFFIX = ".spool";
+
+    private static final String LOCK = "lock";
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final int maxSegments;
+
+    private final RandomAccessFile lockFile;
+
+    private final FileLock lock;
+
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+    private long nextNumber = 0L;
+
+    private volatile long pending = 0L;
+
+    private volatile int segmentCount = 0;
+
+    private final AtomicLong spooled = new AtomicLong();
+
+    private final AtomicLong replayed = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Open a spool, picking up the items that were left in it.
+     *
+     * @param directory
+     *            The directory to keep the segment files in.
+     * @param maxSize
+     *            The maximum size of the spool, in bytes.
+     * @param segmentSize
+     *            The size of each segment file, in bytes.
+     * @throws IOException
+     *             When the spool directory could not be used, or when it is
+     *             locked by another spool.
+     */
+    Spool(final File directory, final long maxSize, final int segmentSize)
+            throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(4096, segmentSize);
+        this.maxSegments = (int) Math.max(2L, Math.min(Integer.MAX_VALUE,
+                maxSize / this.segmentSize));
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("unable to create spool directory "
+                    + directory);
+        }
+
+        lockFile = new RandomAccessFile(new File(directory, LOCK), "rw");
+        FileLock locked = null;
+        try {
+            locked = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another spool in this JVM
+        } catch (IOException e) {
+            lockFile.close();
+            throw e;
+        }
+        if (locked == null) {
+            lockFile.close();
+            throw new IOException("spool directory " + directory
+                    + " is in use by another trapper");
+        }
+        lock = locked;
+
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(final File dir, final String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files);
+        for (final File file : files) {
+            try {
+                final Segment segment = new Segment(file);
+                nextNumber = Math.max(nextNumber, segment.number + 1L);
+                if (segment.records == 0) {
+                    segment.delete();
+                } else {
+                    segments.add(segment);
+                    pending += segment.records;
+                }
+            } catch (Exception e) {
+                log.warn("ignoring unreadable spool segment " + file, e);
+            }
+        }
+        segmentCount = segments.size();
+
+        if (pending > 0L) {
+            log.info("found " + pending + " spooled items in " + directory);
+        }
+    }
+
+    /**
+     * Check whether there are items waiting to be replayed.
+     *
+     * @return <code>true</code> if the spool is empty.
+     */
+    boolean isEmpty() {
+        return pending == 0L;
+    }
+
+    /**
+     * Append items to the spool. The items must be literal items.
+     *
+     * @param items
+     *            The items to append.
+     */
+    void append(final Collection<Item> items) {
+        for (final Item item : items) {
+            try {
+                append(item);
+            } catch (IOException e) {
+                log.warn("unable to spool item for key '" + item.getKey()
+                        + "'", e);
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    private void append(final Item item) throws IOException {
+        final byte[] host = item.getHost().getBytes(UTF8);
+        final byte[] key = item.getKey().getBytes(UTF8);
+        final String text = item.getLiteral();
+        final byte[] value = (text == null ? "" : text).getBytes(UTF8);
+        if (host.length > Short.MAX_VALUE || key.length > Short.MAX_VALUE) {
+            throw new IOException("host or key too long to spool");
+        }
+
+        final int length = 8 + 2 + host.length + 2 + key.length + 4
+                + value.length;
+        if (HEADER + 4 + length > segmentSize) {
+            throw new IOException("item of " + length
+                    + " bytes does not fit in a spool segment");
+        }
+
+        Segment segment = segments.isEmpty() ? null : segments.getLast();
+        if (segment == null || segment.sealed
+                || segment.end + 4 + length > segmentSize) {
+            segment = roll();
+        }
+
+        final MappedByteBuffer map = segment.map;
+        int at = segment.end + 4;
+        map.putLong(at, item.getClock());
+        at += 8;
+        at = put(map, at, host, true);
+        at = put(map, at, key, true);
+        put(map, at, value, false);
+        // the length goes last, so that a torn record reads as the end
+        map.putInt(segment.end, length);
+
+        segment.end += 4 + length;
+        segment.records++;
+        pending++;
+        spooled.incrementAndGet();
+    }
+
+    private static int put(final MappedByteBuffer map, final int offset,
+            final byte[] bytes, final boolean shortLength) {
+        int at = offset;
+        if (shortLength) {
+            map.putShort(at, (short) bytes.length);
+            at += 2;
+        } else {
+            map.putInt(at, bytes.length);
+            at += 4;
+        }
+        for (final byte b : bytes) {
+            map.put(at++, b);
+        }
+        return at;
+    }
+
+    private Segment roll() throws IOException {
+        while (segments.size() >= maxSegments) {
+            final Segment oldest = segments.removeFirst();
+            log.warn("spool is full, dropping " + oldest.records
+                    + " items from " + oldest.file);
+            dropped.addAndGet(oldest.records);
+            pending -= oldest.records;
+            oldest.delete();
+        }
+
+        final File file = new File(directory, String.format("%016d%s",
+                nextNumber++, SUFFIX));
+        final Segment segment = new Segment(file, segmentSize);
+        segments.add(segment);
+        segmentCount = segments.size();
+        return segment;
+    }
+
+    /**
+     * Read the oldest items, without taking them out of the spool.
+     *
+     * @param max
+     *            The maximum number of items to read.
+     * @return The items, oldest first.
+     */
+    List<Item> peek(final int max) {
+        final List<Item> items = new ArrayList<Item>(Math.min(max,
+                (int) Math.min(pending, Integer.MAX_VALUE)));
+        for (final Segment segment : segments) {
+            int at = segment.replayed;
+            int read = 0;
+            while (items.size() < max && at < segment.end) {
+                final MappedByteBuffer map = segment.map;
+                if (!isRecord(map, at, segment.end)) {
+                    truncate(segment, at, read);
+                    break;
+                }
+                final int length = map.getInt(at);
+                int field = at + 4;
+                final long clock = map.getLong(field);
+                field += 8;
+                final int hostLength = map.getShort(field);
+                final String host = get(map, field + 2, hostLength);
+                field += 2 + hostLength;
+                final int keyLength = map.getShort(field);
+                final String key = get(map, field + 2, keyLength);
+                field += 2 + keyLength;
+                final String value = get(map, field + 4, map.getInt(field));
+
+                items.add(new Item(host, key, value, clock));
+                at += 4 + length;
+                read++;
+            }
+            if (items.size() >= max) {
+                break;
+            }
+        }
+        return items;
+    }
+
+    /*
+     * Check that the record at the offset is complete and that its fields
+     * add up to its length, without reading past the limit.
+     */
+    private static boolean isRecord(final MappedByteBuffer map,
+            final int offset, final int limit) {
+        if (offset + 4 > limit) {
+            return false;
+        }
+        final int length = map.getInt(offset);
+        if (length < 8 + 2 + 2 + 4 || length > limit - offset - 4) {
+            return false;
+        }
+
+        final int end = offset + 4 + length;
+        int field = offset + 4 + 8;
+        for (int i = 0; i < 2; i++) {
+            final int size = map.getShort(field);
+            if (size < 0 || size > end - field - 2) {
+                return false;
+            }
+            field += 2 + size;
+        }
+        if (field + 4 > end) {
+            return false;
+        }
+        return map.getInt(field) == end - field - 4;
+    }
+
+    /*
+     * Drop a damaged record and everything after it in its segment.
+     */
+    private void truncate(final Segment segment, final int at, final int read) {
+        final int lost = segment.records - read;
+        log.warn("dropping " + lost + " damaged spooled items from "
+                + segment.file);
+        dropped.addAndGet(lost);
+        pending -= lost;
+        segment.records = read;
+        segment.end = at;
+        segment.sealed = true;
+    }
+
+    private static String get(final MappedByteBuffer map, final int offset,
+            final int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = map.get(offset + i);
+        }
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Take items out of the spool, once they were sent.
+     *
+     * @param count
+     *            The number of items, as returned by {@link #peek(int)}.
+     */
+    void commit(final int count) {
+        int left = count;
+        while (left > 0 && !segments.isEmpty()) {
+            final Segment segment = segments.getFirst();
+            while (left > 0 && segment.replayed < segment.end) {
+                segment.replayed += 4 + segment.map.getInt(segment.replayed);
+                segment.records--;
+                pending--;
+                left--;
+                replayed.incrementAndGet();
+            }
+            segment.map.putInt(READ_OFFSET, segment.replayed);
+
+            if (segment.replayed < segment.end
+                    || segment == segments.getLast()) {
+                break;
+            }
+            segments.removeFirst();
+            segment.delete();
+        }
+        segmentCount = segments.size();
+    }
+
+    /**
+     * Flush the spool to disk and close its files.
+     */
+    void close() {
+        for (final Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+        segmentCount = 0;
+
+        try {
+            lock.release();
+            lockFile.close();
+        } catch (IOException e) {
+            log.warn("unable to unlock spool directory " + directory, e);
+        }
+    }
+
+    /**
+     * One segment file, mapped into memory.
+     */
+    private final class Segment {
+        final File file;
+
+        final long number;
+
+        final RandomAccessFile raf;
+
+        final MappedByteBuffer map;
+
+        int replayed;
+
+        int end;
+
+        int records = 0;
+
+        // no appends, the end of a recovered segment may hide a torn record
+        boolean sealed = false;
+
+        /*
+         * Create a new, empty segment.
+         */
+        Segment(final File file, final int size) throws IOException {
+            this.file = file;
+            this.number = number(file);
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L,
+                        size);
+            } catch (IOException e) {
+                raf.close();
+                file.delete();
+                throw e;
+            }
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(READ_OFFSET, HEADER);
+            replayed = HEADER;
+            end = HEADER;
+        }
+
+        /*
+         * Open an existing segment, finding the end of the records in it.
+         */
+        Segment(final File file) throws IOException {
+            this.file = file;
+            this.number = number(file);
+            raf = new RandomAccessFile(file, "rw");
+            try {
+                final long size = raf.length();
+                if (size < HEADER || size > Integer.MAX_VALUE) {
+                    throw new IOException("bad segment size " + size);
+                }
+                map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0L,
+                        size);
+                if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+                    throw new IOException("not a spool segment");
+                }
+
+                int at = HEADER;
+                final int replayedTo = map.getInt(READ_OFFSET);
+                int count = 0;
+                while (isRecord(map, at, (int) size)) {
+                    at += 4 + map.getInt(at);
+                    if (at > replayedTo) {
+                        count++;
+                    }
+                }
+                end = at;
+                replayed = Math.max(HEADER, Math.min(replayedTo, end));
+                records = count;
+                sealed = true;
+            } catch (IOException e) {
+                raf.close();
+                throw e;
+            }
+        }
+
+        void close() {
+            try {
+                map.force();
+                raf.close();
+            } catch (IOException e) {
+                log.warn("unable to close spool segment " + file, e);
+            }
+        }
+
+        void delete() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                log.debug("ignoring exception", e);
+            }
+            if (!file.delete()) {
+                log.warn("unable to delete spool segment " + file);
+            }
+        }
+    }
+
+    private static long number(final File file) throws IOException {
+        final String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length()
+                    - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("bad segment name " + name);
+        }
+    }
+
+    /**
+     * The interface to our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public interface StatisticsMBean {
+        /**
+         * Read the number of items that were written to the spool.
+         *
+         * @return The number of spooled items.
+         */
+        long getSpooled();
+
+        /**
+         * Read the number of spooled items that were sent after all.
+         *
+         * @return The number of replayed items.
+         */
+        long getReplayed();
+
+        /**
+         * Read the number of items that were lost because the spool was full,
+         * or because they could not be written.
+         *
+         * @return The number of dropped items.
+         */
+        long getDropped();
+
+        /**
+         * Read the number of items waiting to be replayed.
+         *
+         * @return The number of pending items.
+         */
+        long getPending();
+
+        /**
+         * Read the number of segment files in use.
+         *
+         * @return The number of segments.
+         */
+        int getSegments();
+
+        /**
+         * Read the directory that the segment files live in.
+         *
+         * @return The spool directory.
+         */
+        String getDirectory();
+    }
+
+    /**
+     * Our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public class Statistics implements StatisticsMBean {
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Spool.StatisticsMBean#getSpooled()
+         */
+        public long getSpooled() {
+            return spooled.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Spool.StatisticsMBean#getReplayed()
+         */
+        public long getReplayed() {
+            return replayed.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Spool.StatisticsMBean#getDropped()
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Spool.StatisticsMBean#getPending()
+         */
+        public long getPending() {
+            return pending;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Spool.StatisticsMBean#getSegments()
+         */
+        public int getSegments() {
+            return segmentCount;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.Spool.StatisticsMBean#getDirectory()
+         */
+        public String getDirectory() {
+            return directory.getAbsolutePath();
+        }
+    }
+}
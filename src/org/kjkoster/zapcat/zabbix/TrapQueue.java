@@ -0,0 +1,716 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The bounded queue between the application threads that trap data and the
+ * sender. When the Zabbix server cannot keep up, or is down altogether, the
+ * queue fills up and the overflow policy decides what gives:
+ * <ul>
+ * <li><code>drop-oldest</code> (the default) makes room by dropping the item
+ * that has been waiting longest, so that the freshest data gets through;</li>
+ * <li><code>drop-newest</code> drops the item that was just trapped;</li>
+ * <li><code>coalesce</code> replaces a waiting item for the same host and key
+ * with the new one, and drops the new item if there is none;</li>
+ * <li><code>block</code> makes the application thread wait for room, up to a
+ * timeout, and then drops the new item.</li>
+ * </ul>
+ * Dropped items are counted, so that lost data shows up in JMX.
+ * <p>
+ * The queue is a ring of preallocated slots, after Dmitry Vyukov's bounded
+ * queue. Each slot carries a sequence number that says whether it is free for
+ * the producer at a given position, or holds an item for the consumer at that
+ * position. Producers claim a position with a single compare-and-set on the
+ * tail and fill in the slot in place, so trapping a number allocates nothing
+ * and takes no locks. Numbers are stored as they are and only formatted by the
+ * sender. The sender is the only thread that waits for items; producers wake
+ * it up when it is parked.
+ * <p>
+ * The capacity is rounded up to a power of two.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class TrapQueue {
+    private static final Logger log = Logger.getLogger(TrapQueue.class);
+
+    /**
+     * What to do with new items when the queue is full.
+     */
+    enum Overflow {
+        /**
+         * Drop the new item.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Drop the item that has been waiting longest.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Replace a waiting item for the same host and key.
+         */
+        COALESCE,
+
+        /**
+         * Wait for room, up to a timeout.
+         */
+        BLOCK;
+
+        /**
+         * Parse a policy name, such as <code>drop-oldest</code>.
+         *
+         * @param name
+         *            The name of the policy.
+         * @return The policy, or <code>null</code> if there is no policy by
+         *         that name.
+         */
+        static Overflow parse(final String name) {
+            for (final Overflow overflow : values()) {
+                if (overflow.toString().equals(name)) {
+                    return overflow;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @see java.lang.Enum#toString()
+         */
+        @Override
+        public String toString() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    private static final byte STRING = 0;
+
+    private static final byte LONG = 1;
+
+    private static final byte DOUBLE = 2;
+
+    private static final byte QUERY = 3;
+
+    // how long the sender parks at most, in case it misses a wake-up
+    private static final long PARK = TimeUnit.MILLISECONDS.toNanos(100L);
+
+    // how long a blocked producer parks between looks at the queue
+    private static final long BACKOFF = TimeUnit.MICROSECONDS.toNanos(100L);
+
+    private final int capacity;
+
+    private final int mask;
+
+    private final Overflow overflow;
+
+    private final long timeout;
+
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLongArray sequences;
+
+    // set while a producer coalesces a new value into a waiting slot
+    private final AtomicIntegerArray busy;
+
+    private final String[] hosts;
+
+    private final String[] keys;
+
+    private final byte[] kinds;
+
+    // longs as they are, doubles as their raw bits
+    private final long[] numbers;
+
+    // string values or object names
+    private final Object[] values;
+
+    private final String[] attributes;
+
+    // when each item was trapped, in milliseconds since the epoch
+    private final long[] clocks;
+
+    private volatile Thread waiter = null;
+
+    private final AtomicLong overflows = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Create a new queue.
+     *
+     * @param capacity
+     *            The maximum number of items in the queue, rounded up to a
+     *            power of two.
+     * @param overflow
+     *            What to do when the queue is full.
+     * @param timeout
+     *            The number of milliseconds to wait for room, for the
+     *            {@link Overflow#BLOCK} policy.
+     */
+    TrapQueue(final int capacity, final Overflow overflow, final long timeout) {
+        int size = 1;
+        while (size < capacity && size < 1 << 30) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.overflow = overflow;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, timeout));
+
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        busy = new AtomicIntegerArray(size);
+        hosts = new String[size];
+        keys = new String[size];
+        kinds = new byte[size];
+        numbers = new long[size];
+        values = new Object[size];
+        attributes = new String[size];
+        clocks = new long[size];
+    }
+
+    /**
+     * Queue a literal value.
+     *
+     * @param host
+     *            The host configuration to send the item to.
+     * @param key
+     *            The monitoring server's key for this statistic.
+     * @param value
+     *            The literal value.
+     * @return <code>true</code> if the item was queued, <code>false</code> if
+     *         it was dropped.
+     */
+    boolean offer(final String host, final String key, final String value) {
+        check(host, key);
+        if (value == null) {
+            throw new IllegalArgumentException("null value for key '" + key
+                    + "'");
+        }
+        return offer(host, key, STRING, 0L, value, null);
+    }
+
+    /**
+     * Queue a whole number.
+     *
+     * @param host
+     *            The host configuration to send the item to.
+     * @param key
+     *            The monitoring server's key for this statistic.
+     * @param value
+     *            The value.
+     * @return <code>true</code> if the item was queued, <code>false</code> if
+     *         it was dropped.
+     */
+    boolean offer(final String host, final String key, final long value) {
+        check(host, key);
+        return offer(host, key, LONG, value, null, null);
+    }
+
+    /**
+     * Queue a number.
+     *
+     * @param host
+     *            The host configuration to send the item to.
+     * @param key
+     *            The monitoring server's key for this statistic.
+     * @param value
+     *            The value.
+     * @return <code>true</code> if the item was queued, <code>false</code> if
+     *         it was dropped.
+     */
+    boolean offer(final String host, final String key, final double value) {
+        check(host, key);
+        return offer(host, key, DOUBLE, Double.doubleToRawLongBits(value),
+                null, null);
+    }
+
+    /**
+     * Queue a JMX query, to be performed by the sender.
+     *
+     * @param host
+     *            The host configuration to send the item to.
+     * @param key
+     *            The monitoring server's key for this statistic.
+     * @param objectName
+     *            The JMX object to query.
+     * @param attribute
+     *            The attribute on that object.
+     * @return <code>true</code> if the item was queued, <code>false</code> if
+     *         it was dropped.
+     */
+    boolean offer(final String host, final String key,
+            final ObjectName objectName, final String attribute) {
+        if (key == null || "".equals(key.trim())) {
+            throw new IllegalArgumentException("empty key");
+        }
+        if (objectName == null) {
+            throw new IllegalArgumentException("null objectname for key '"
+                    + key + "'");
+        }
+        if (attribute == null) {
+            throw new IllegalArgumentException("null attribute for key '" + key
+                    + "'");
+        }
+        return offer(host, key, QUERY, 0L, objectName, attribute);
+    }
+
+    private static void check(final String host, final String key) {
+        if (host == null || "".equals(host.trim())) {
+            throw new IllegalArgumentException("empty host");
+        }
+        if (key == null || "".equals(key.trim())) {
+            throw new IllegalArgumentException("empty key");
+        }
+    }
+
+    /**
+     * Queue an item that was trapped earlier, keeping the time it was
+     * trapped. This is how items move between destinations.
+     *
+     * @param item
+     *            The item to queue.
+     * @return <code>true</code> if the item was queued, <code>false</code> if
+     *         it was dropped.
+     */
+    boolean offer(final Item item) {
+        if (item.getLiteral() == null) {
+            return offer(item.getHost(), item.getKey(), QUERY, 0L, item
+                    .getObjectName(), item.getAttribute(), item.getClock());
+        }
+        return offer(item.getHost(), item.getKey(), STRING, 0L, item
+                .getLiteral(), null, item.getClock());
+    }
+
+    private boolean offer(final String host, final String key,
+            final byte kind, final long number, final Object value,
+            final String attribute) {
+        return offer(host, key, kind, number, value, attribute, System
+                .currentTimeMillis());
+    }
+
+    private boolean offer(final String host, final String key,
+            final byte kind, final long number, final Object value,
+            final String attribute, final long clock) {
+        if (publish(host, key, kind, number, value, attribute, clock)) {
+            return true;
+        }
+
+        overflows.incrementAndGet();
+        switch (overflow) {
+        case DROP_OLDEST:
+            do {
+                final long position = claim();
+                if (position >= 0L) {
+                    release(position);
+                    drop();
+                }
+            } while (!publish(host, key, kind, number, value, attribute,
+                    clock));
+            return true;
+        case COALESCE:
+            if (coalesce(host, key, kind, number, value, attribute, clock)) {
+                coalesced.incrementAndGet();
+                return true;
+            }
+            break;
+        case BLOCK:
+            final long deadline = System.nanoTime() + timeout;
+            while (deadline - System.nanoTime() > 0L
+                    && !Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(BACKOFF);
+                if (publish(host, key, kind, number, value, attribute, clock)) {
+                    return true;
+                }
+            }
+            break;
+        default:
+            break;
+        }
+
+        drop();
+        return false;
+    }
+
+    /*
+     * Claim the slot at the tail and fill it in. Returns false if the queue
+     * is full.
+     */
+    private boolean publish(final String host, final String key,
+            final byte kind, final long number, final Object value,
+            final String attribute, final long clock) {
+        long position = tail.get();
+        for (;;) {
+            final int slot = (int) position & mask;
+            final long difference = sequences.get(slot) - position;
+            if (difference == 0L) {
+                if (tail.compareAndSet(position, position + 1L)) {
+                    hosts[slot] = host;
+                    keys[slot] = key;
+                    kinds[slot] = kind;
+                    numbers[slot] = number;
+                    values[slot] = value;
+                    attributes[slot] = attribute;
+                    clocks[slot] = clock;
+                    sequences.set(slot, position + 1L);
+
+                    final Thread sender = waiter;
+                    if (sender != null) {
+                        LockSupport.unpark(sender);
+                    }
+                    return true;
+                }
+            } else if (difference < 0L) {
+                return false;
+            }
+            position = tail.get();
+        }
+    }
+
+    /*
+     * Claim the slot at the head. Returns its position, or -1 if the queue is
+     * empty. The slot must be handed back with release() once it was read.
+     */
+    private long claim() {
+        long position = head.get();
+        for (;;) {
+            final int slot = (int) position & mask;
+            final long difference = sequences.get(slot) - (position + 1L);
+            if (difference == 0L) {
+                if (head.compareAndSet(position, position + 1L)) {
+                    // wait for a producer that is coalescing into this slot
+                    while (busy.get(slot) != 0) {
+                        Thread.yield();
+                    }
+                    return position;
+                }
+            } else if (difference < 0L) {
+                return -1L;
+            }
+            position = head.get();
+        }
+    }
+
+    private void release(final long position) {
+        final int slot = (int) position & mask;
+        hosts[slot] = null;
+        keys[slot] = null;
+        values[slot] = null;
+        attributes[slot] = null;
+        sequences.set(slot, position + capacity);
+    }
+
+    /*
+     * Overwrite a waiting item for the same host and key. Walking the queue
+     * is expensive, but we only do it when the queue is full. The busy flag
+     * keeps the consumer from reading the slot while we write it. Consumers
+     * claim the head before they look at the flag and we set the flag before
+     * we look at the head, so either we see that the slot was claimed, or the
+     * consumer waits for us.
+     */
+    private boolean coalesce(final String host, final String key,
+            final byte kind, final long number, final Object value,
+            final String attribute, final long clock) {
+        final long end = tail.get();
+        for (long position = head.get(); position < end; position++) {
+            final int slot = (int) position & mask;
+            if (sequences.get(slot) != position + 1L
+                    || !key.equals(keys[slot])) {
+                continue;
+            }
+
+            if (!busy.compareAndSet(slot, 0, 1)) {
+                continue;
+            }
+            try {
+                if (head.get() <= position
+                        && sequences.get(slot) == position + 1L
+                        && key.equals(keys[slot])
+                        && (host == null ? hosts[slot] == null : host
+                                .equals(hosts[slot]))) {
+                    kinds[slot] = kind;
+                    numbers[slot] = number;
+                    values[slot] = value;
+                    attributes[slot] = attribute;
+                    clocks[slot] = clock;
+                    return true;
+                }
+            } finally {
+                busy.set(slot, 0);
+            }
+        }
+        return false;
+    }
+
+    private void drop() {
+        final long count = dropped.incrementAndGet();
+        if (count % 1000L == 1L) {
+            log.warn("trapper queue is full, dropped " + count
+                    + " items so far");
+        }
+    }
+
+    /**
+     * Take the item that has been waiting longest, without waiting.
+     *
+     * @return The item, or <code>null</code> if the queue is empty.
+     */
+    Item poll() {
+        final long position = claim();
+        if (position < 0L) {
+            return null;
+        }
+
+        final int slot = (int) position & mask;
+        final String host = hosts[slot];
+        final String key = keys[slot];
+        final long clock = clocks[slot];
+        final Item item;
+        switch (kinds[slot]) {
+        case LONG:
+            item = new Item(host, key, Long.toString(numbers[slot]), clock);
+            break;
+        case DOUBLE:
+            // not the attribute formatter, it rounds and follows the locale
+            item = new Item(host, key, Double.toString(Double
+                    .longBitsToDouble(numbers[slot])), clock);
+            break;
+        case QUERY:
+            item = new Item(host, key, (ObjectName) values[slot],
+                    attributes[slot], clock);
+            break;
+        default:
+            item = new Item(host, key, (String) values[slot], clock);
+            break;
+        }
+        release(position);
+        return item;
+    }
+
+    /**
+     * Wait for an item. Only the sender may wait.
+     *
+     * @return The item that has been waiting longest.
+     * @throws InterruptedException
+     *             When the thread was interrupted while waiting.
+     */
+    Item take() throws InterruptedException {
+        for (;;) {
+            final Item item = poll(PARK, TimeUnit.NANOSECONDS);
+            if (item != null) {
+                return item;
+            }
+        }
+    }
+
+    /**
+     * Wait for an item, up to a timeout. Only the sender may wait.
+     *
+     * @param wait
+     *            The time to wait.
+     * @param unit
+     *            The unit of the time to wait.
+     * @return The item that has been waiting longest, or <code>null</code>
+     *         if no item came in time.
+     * @throws InterruptedException
+     *             When the thread was interrupted while waiting.
+     */
+    Item poll(final long wait, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(wait);
+        for (;;) {
+            Item item = poll();
+            if (item != null) {
+                return item;
+            }
+
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0L) {
+                return null;
+            }
+
+            // producers read the waiter after publishing, so either they see
+            // us or we see their item
+            waiter = Thread.currentThread();
+            try {
+                item = poll();
+                if (item != null) {
+                    return item;
+                }
+                LockSupport.parkNanos(this, Math.min(remaining, PARK));
+            } finally {
+                waiter = null;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Move waiting items into a collection, without waiting.
+     *
+     * @param items
+     *            The collection to add the items to.
+     * @param max
+     *            The maximum number of items to move.
+     * @return The number of items moved.
+     */
+    int drainTo(final Collection<Item> items, final int max) {
+        int moved = 0;
+        while (moved < max) {
+            final Item item = poll();
+            if (item == null) {
+                break;
+            }
+            items.add(item);
+            moved++;
+        }
+        return moved;
+    }
+
+    /**
+     * The interface to our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public interface StatisticsMBean {
+        /**
+         * Read the number of items that were queued.
+         *
+         * @return The number of queued items.
+         */
+        long getEnqueued();
+
+        /**
+         * Read the number of times an item was trapped while the queue was
+         * full.
+         *
+         * @return The number of overflows.
+         */
+        long getOverflows();
+
+        /**
+         * Read the number of items that were dropped because the queue was
+         * full.
+         *
+         * @return The number of dropped items.
+         */
+        long getDropped();
+
+        /**
+         * Read the number of waiting items that were replaced by a newer
+         * value for the same key.
+         *
+         * @return The number of coalesced items.
+         */
+        long getCoalesced();
+
+        /**
+         * Read the number of items waiting to be sent.
+         *
+         * @return The current size of the queue.
+         */
+        int getSize();
+
+        /**
+         * Read the maximum number of items in the queue.
+         *
+         * @return The capacity of the queue.
+         */
+        int getCapacity();
+
+        /**
+         * Read what happens to new items when the queue is full.
+         *
+         * @return The overflow policy.
+         */
+        String getOverflowPolicy();
+    }
+
+    /**
+     * Our JMX representation.
+     *
+     * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+     */
+    public class Statistics implements StatisticsMBean {
+        /**
+         * @see org.kjkoster.zapcat.zabbix.TrapQueue.StatisticsMBean#getEnqueued()
+         */
+        public long getEnqueued() {
+            return tail.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.TrapQueue.StatisticsMBean#getOverflows()
+         */
+        public long getOverflows() {
+            return overflows.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.TrapQueue.StatisticsMBean#getDropped()
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.TrapQueue.StatisticsMBean#getCoalesced()
+         */
+        public long getCoalesced() {
+            return coalesced.get();
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.TrapQueue.StatisticsMBean#getSize()
+         */
+        public int getSize() {
+            return (int) Math.max(0L, tail.get() - head.get());
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.TrapQueue.StatisticsMBean#getCapacity()
+         */
+        public int getCapacity() {
+            return capacity;
+        }
+
+        /**
+         * @see org.kjkoster.zapcat.zabbix.TrapQueue.StatisticsMBean#getOverflowPolicy()
+         */
+        public String getOverflowPolicy() {
+            return overflow.toString();
+        }
+    }
+}
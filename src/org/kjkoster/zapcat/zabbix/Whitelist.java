@@ -0,0 +1,317 @@
+package org.kjkoster.zapcat.zabbix;
+
+/* This file is part of Zapcat.
+ *
+ * Zapcat is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * Zapcat is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * Zapcat. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The list of hosts that may connect to the agent. Entries may be IPv4 or IPv6
+ * addresses, CIDR ranges such as "10.0.0.0/8" or "fe80::/10", or host names.
+ * <p>
+ * The list is compiled once into an immutable set of address ranges, so
+ * checking an accepted connection never touches DNS. Host names are resolved
+ * once when the list is compiled, and re-resolved periodically on a
+ * background thread. Each resolution round builds a fresh set of ranges and
+ * swaps it in atomically.
+ *
+ * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
+ */
+final class Whitelist {
+    private static final Logger log = Logger.getLogger(Whitelist.class);
+
+    private static final Pattern IPV4 = Pattern
+            .compile("[0-9]{1,3}(\\.[0-9]{1,3}){3}");
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    private final ScheduledExecutorService resolver;
+
+    private volatile Resolved resolved;
+
+    /**
+     * Compile a whitelist.
+     *
+     * @param list
+     *            The comma separated list of entries.
+     * @param refresh
+     *            The number of seconds between host name resolutions.
+     */
+    Whitelist(final String list, final long refresh) {
+        boolean hasHostNames = false;
+        for (final String entry : list.split(",\\s*")) {
+            if (entry.trim().length() == 0) {
+                continue;
+            }
+
+            try {
+                entries.add(new Entry(entry.trim()));
+                hasHostNames |= entries.get(entries.size() - 1).isHostName();
+            } catch (IllegalArgumentException e) {
+                log.error("invalid entry '" + entry + "' on the white list",
+                        e);
+            }
+        }
+
+        resolved = resolve();
+
+        if (hasHostNames) {
+            resolver = Executors
+                    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                        public Thread newThread(final Runnable runnable) {
+                            final Thread thread = new Thread(runnable,
+                                    "Zabbix-whitelist");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            resolver.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    resolved = resolve();
+                }
+            }, refresh, refresh, TimeUnit.SECONDS);
+        } else {
+            resolver = null;
+        }
+    }
+
+    /**
+     * Stop re-resolving host names.
+     */
+    void stop() {
+        if (resolver != null) {
+            resolver.shutdownNow();
+        }
+    }
+
+    /**
+     * Check an address against the list.
+     *
+     * @param address
+     *            The address of the peer.
+     * @return <code>true</code> if the peer may connect.
+     */
+    boolean accepts(final InetAddress address) {
+        final byte[] bytes = address.getAddress();
+        for (final Range range : resolved.ranges) {
+            if (range.contains(bytes)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Describe the list as it was last resolved, in the format
+     * &lt;supplied name&gt;&nbsp;(&lt;resolved addresses or exception&gt;).
+     *
+     * @return The list as strings.
+     */
+    Collection<String> describe() {
+        return resolved.descriptions;
+    }
+
+    private Resolved resolve() {
+        final Resolved previous = resolved;
+        final List<Range> ranges = new ArrayList<Range>();
+        final List<String> descriptions = new ArrayList<String>();
+
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            if (!entry.isHostName()) {
+                ranges.add(entry.range);
+                descriptions.add(entry.name + " (" + entry.range + ")");
+            } else {
+                try {
+                    final StringBuilder description = new StringBuilder();
+                    for (final InetAddress address : InetAddress
+                            .getAllByName(entry.name)) {
+                        ranges.add(new Range(address.getAddress(), address
+                                .getAddress().length * 8, entry.name));
+                        description.append(description.length() == 0 ? ""
+                                : ", ");
+                        description.append(address.getHostAddress());
+                    }
+                    descriptions.add(entry.name + " (" + description + ")");
+                } catch (UnknownHostException e) {
+                    log.error("invalid host '" + entry.name
+                            + "' on the white list", e);
+                    descriptions.add(entry.name + " ("
+                            + e.getClass().getName() + ": " + e.getMessage()
+                            + ")");
+                    // keep what we knew about this host, DNS may be flaky
+                    if (previous != null) {
+                        ranges.addAll(previous.hostRanges(entry.name));
+                    }
+                }
+            }
+        }
+
+        return new Resolved(ranges, descriptions);
+    }
+
+    /**
+     * One entry, as supplied in the configuration.
+     */
+    private static final class Entry {
+        final String name;
+
+        // null for host names
+        final Range range;
+
+        Entry(final String name) {
+            this.name = name;
+
+            final int slash = name.indexOf('/');
+            final String host = slash < 0 ? name : name.substring(0, slash);
+            if (!IPV4.matcher(host).matches() && host.indexOf(':') < 0) {
+                if (slash >= 0) {
+                    throw new IllegalArgumentException(
+                            "CIDR ranges need an IP address");
+                }
+                range = null;
+                return;
+            }
+
+            if (IPV4.matcher(host).matches()) {
+                for (final String octet : host.split("\\.")) {
+                    if (Integer.parseInt(octet) > 255) {
+                        // InetAddress would take it for a host name
+                        throw new IllegalArgumentException("bad IPv4 address "
+                                + host);
+                    }
+                }
+            }
+
+            final byte[] address;
+            try {
+                // literal addresses are parsed without DNS lookups
+                address = InetAddress.getByName(host).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+            final int bits = address.length * 8;
+            final int prefix = slash < 0 ? bits : Integer.parseInt(name
+                    .substring(slash + 1));
+            if (prefix < 0 || prefix > bits) {
+                throw new IllegalArgumentException("bad prefix length "
+                        + prefix);
+            }
+            range = new Range(address, prefix);
+        }
+
+        boolean isHostName() {
+            return range == null;
+        }
+    }
+
+    /**
+     * An address with a prefix length.
+     */
+    private static final class Range {
+        final byte[] network;
+
+        final int prefix;
+
+        final String host;
+
+        Range(final byte[] address, final int prefix) {
+            this(address, prefix, null);
+        }
+
+        Range(final byte[] address, final int prefix, final String host) {
+            this.network = address.clone();
+            this.prefix = prefix;
+            this.host = host;
+
+            // clear the host bits, so that "10.1.2.3/8" means "10.0.0.0/8"
+            for (int i = 0; i < network.length; i++) {
+                final int keep = Math.max(0, Math.min(8, prefix - i * 8));
+                network[i] &= (byte) (0xff00 >> keep);
+            }
+        }
+
+        boolean contains(final byte[] address) {
+            if (address.length != network.length) {
+                return false;
+            }
+
+            int i = 0;
+            for (; i < prefix / 8; i++) {
+                if (address[i] != network[i]) {
+                    return false;
+                }
+            }
+            final int rest = prefix % 8;
+            if (rest == 0) {
+                return true;
+            }
+            final int mask = 0xff & (0xff00 >> rest);
+            return (address[i] & mask) == (network[i] & mask);
+        }
+
+        @Override
+        public String toString() {
+            try {
+                final String address = InetAddress.getByAddress(network)
+                        .getHostAddress();
+                return prefix == network.length * 8 ? address : address + "/"
+                        + prefix;
+            } catch (UnknownHostException e) {
+                // cannot happen, the array has the right length
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * One immutable resolution of the list.
+     */
+    private static final class Resolved {
+        final Range[] ranges;
+
+        final Collection<String> descriptions;
+
+        Resolved(final List<Range> ranges, final List<String> descriptions) {
+            this.ranges = ranges.toArray(new Range[ranges.size()]);
+            this.descriptions = Collections
+                    .unmodifiableList(new ArrayList<String>(descriptions));
+        }
+
+        List<Range> hostRanges(final String host) {
+            final List<Range> found = new ArrayList<Range>();
+            for (final Range range : ranges) {
+                if (host.equals(range.host)) {
+                    found.add(range);
+                }
+            }
+            return found;
+        }
+    }
+}
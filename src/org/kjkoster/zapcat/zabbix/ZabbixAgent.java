@@ -18,14 +18,16 @@ package org.kjkoster.zapcat.zabbix;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
-import java.util.Arrays;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collections;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -40,7 +42,16 @@ import org.kjkoster.zapcat.Agent;
  * A passive Zabbix agent. This agent starts and manages a daemon thread.
  * <p>
  * The agent uses an executor service to handle the JMX queries that come in.
- * This allows us to handle a few queries concurrently.
+ * This allows us to handle a few queries concurrently. By default this is a
+ * pool of up to 5 platform threads. Set "org.kjkoster.zapcat.zabbix.handlers"
+ * to "virtual" to run every query on its own virtual thread instead. On JVMs
+ * that have no virtual threads (before Java 21) the agent falls back to the
+ * platform thread pool, sized by "org.kjkoster.zapcat.zabbix.handlers.max".
+ * <p>
+ * By default each connection is read and written by a handler thread, using
+ * blocking I/O. Setting "org.kjkoster.zapcat.zabbix.io" to "nio" switches the
+ * agent to non-blocking I/O, where one or a few selector threads do all the
+ * socket work and only the JMX evaluation runs on the handler threads.
  * <p>
  * Configuration done through system properties override default values.
  * 
@@ -75,6 +86,171 @@ public final class ZabbixAgent implements Agent, Runnable {
      */
     public static final String WHITELIST_PROPERTY = "org.kjkoster.zapcat.whitelist";
 
+    /**
+     * The property key indicating how often, in seconds, the host names on the
+     * whitelist are resolved again. Defaults to 300.
+     */
+    public static final String WHITELIST_REFRESH_PROPERTY = "org.kjkoster.zapcat.whitelist.refresh";
+
+    /**
+     * The property key indicating the I/O mode, either "blocking" (the
+     * default) or "nio".
+     */
+    public static final String IO_PROPERTY = "org.kjkoster.zapcat.zabbix.io";
+
+    /**
+     * The property key indicating the number of selector threads to use in the
+     * "nio" I/O mode. Defaults to 1.
+     */
+    public static final String IO_THREADS_PROPERTY = "org.kjkoster.zapcat.zabbix.io.threads";
+
+    /**
+     * The property key indicating the largest query the agent accepts, in
+     * bytes. Defaults to 65536.
+     */
+    public static final String MAX_FRAME_PROPERTY = "org.kjkoster.zapcat.zabbix.maxframe";
+
+    /**
+     * The property key indicating how long, in milliseconds, a connection may
+     * sit idle between queries. Defaults to 0, which means that the agent
+     * closes the connection once it has answered one query.
+     * Setting a timeout lets pollers send many queries over one connection.
+     */
+    public static final String KEEPALIVE_PROPERTY = "org.kjkoster.zapcat.zabbix.keepalive";
+
+    /**
+     * The property key indicating how long, in milliseconds, JMX query results
+     * are cached by default. Defaults to 0, which disables the cache.
+     */
+    public static final String CACHE_TTL_PROPERTY = "org.kjkoster.zapcat.zabbix.cache.ttl";
+
+    /**
+     * The property key for the cache rules, which set the TTL for specific
+     * mbeans or attributes. Rules look like
+     * <code>pattern[#attribute]=ttl</code> and are separated by semicolons,
+     * for example <code>Catalina:type=Manager,*=5000</code>.
+     */
+    public static final String CACHE_RULES_PROPERTY = "org.kjkoster.zapcat.zabbix.cache.rules";
+
+    /**
+     * The property key indicating the maximum number of cached JMX query
+     * results. Defaults to 10000.
+     */
+    public static final String CACHE_SIZE_PROPERTY = "org.kjkoster.zapcat.zabbix.cache.size";
+
+    /**
+     * The property key indicating the maximum number of parsed item keys that
+     * are kept, so that repeated polls skip parsing. Defaults to 10000.
+     */
+    public static final String PLANS_SIZE_PROPERTY = "org.kjkoster.zapcat.zabbix.plans.size";
+
+    /**
+     * The property key indicating the maximum number of rows in a
+     * <code>jmx.discovery[]</code> response. Defaults to 1000.
+     */
+    public static final String DISCOVERY_MAX_PROPERTY = "org.kjkoster.zapcat.zabbix.discovery.max";
+
+    /**
+     * The property key indicating the maximum number of
+     * <code>jmx.rate[]</code> and <code>jmx.delta[]</code> keys whose
+     * previous sample is kept. Each key costs roughly 100 bytes plus the
+     * length of the key. Defaults to 10000.
+     */
+    public static final String SAMPLES_SIZE_PROPERTY = "org.kjkoster.zapcat.zabbix.samples.size";
+
+    /**
+     * The property key indicating the number of milliseconds between two
+     * samples of an attribute that a <code>jmx.window[]</code> key asks for.
+     * Defaults to 100.
+     */
+    public static final String SAMPLER_INTERVAL_PROPERTY = "org.kjkoster.zapcat.zabbix.sampler.interval";
+
+    /**
+     * The property key indicating the number of samples that are kept per
+     * sampled attribute, at 16 bytes each. Defaults to 1200, two minutes at
+     * the default interval.
+     */
+    public static final String SAMPLER_SIZE_PROPERTY = "org.kjkoster.zapcat.zabbix.sampler.size";
+
+    /**
+     * The property key indicating the maximum number of attributes that are
+     * sampled in the background. Defaults to 100.
+     */
+    public static final String SAMPLER_SERIES_PROPERTY = "org.kjkoster.zapcat.zabbix.sampler.series";
+
+    /**
+     * The property key indicating the share of one CPU, in percent, that the
+     * background sampler may use. Defaults to 5.
+     */
+    public static final String SAMPLER_CPU_PROPERTY = "org.kjkoster.zapcat.zabbix.sampler.cpu";
+
+    /**
+     * The property key listing the object name patterns of "hot" mbeans,
+     * separated by semicolons. Polled attributes of hot mbeans are refreshed
+     * in the background and served from a snapshot. The age of a served value
+     * can be polled with <code>jmx.age[]</code>.
+     */
+    public static final String HOT_PROPERTY = "org.kjkoster.zapcat.zabbix.hot";
+
+    /**
+     * The property key indicating the number of milliseconds between two
+     * refreshes of the hot mbeans. Defaults to 1000.
+     */
+    public static final String HOT_INTERVAL_PROPERTY = "org.kjkoster.zapcat.zabbix.hot.interval";
+
+    /**
+     * The property key indicating the maximum number of threads that read
+     * mbeans in parallel for aggregate keys such as <code>jmx.sum[]</code>.
+     * Defaults to 4, zero reads the mbeans one by one.
+     */
+    public static final String READER_THREADS_PROPERTY = "org.kjkoster.zapcat.zabbix.readers";
+
+    /**
+     * The property key that controls whether attributes of platform MXBeans
+     * and of our own mbeans may be read directly, bypassing the mbean
+     * server. Defaults to "true".
+     */
+    public static final String DIRECT_PROPERTY = "org.kjkoster.zapcat.zabbix.direct";
+
+    /**
+     * The property key indicating the number of milliseconds that a JMX query
+     * may take before the agent gives up and answers ZBX_NOTSUPPORTED.
+     * Defaults to 3000, zero lets queries take as long as they take.
+     */
+    public static final String DEADLINE_PROPERTY = "org.kjkoster.zapcat.zabbix.deadline";
+
+    /**
+     * The property key indicating the maximum number of JMX queries that may
+     * be running against the deadline at the same time. Defaults to 16. When
+     * they are all busy, further queries fail right away.
+     */
+    public static final String DEADLINE_THREADS_PROPERTY = "org.kjkoster.zapcat.zabbix.deadline.threads";
+
+    /**
+     * The property key indicating how many times in a row an mbean may miss
+     * the deadline before queries against it fail fast. Defaults to 3.
+     */
+    public static final String BREAKER_THRESHOLD_PROPERTY = "org.kjkoster.zapcat.zabbix.breaker.threshold";
+
+    /**
+     * The property key indicating the number of milliseconds that queries
+     * against a tripped mbean fail fast. Defaults to 60000.
+     */
+    public static final String BREAKER_COOLDOWN_PROPERTY = "org.kjkoster.zapcat.zabbix.breaker.cooldown";
+
+    /**
+     * The property key indicating how queries are executed, either "pool" (the
+     * default) for a pool of platform threads or "virtual" for one virtual
+     * thread per query.
+     */
+    public static final String HANDLERS_PROPERTY = "org.kjkoster.zapcat.zabbix.handlers";
+
+    /**
+     * The property key indicating the maximum number of platform threads in
+     * the handler pool. Defaults to 5.
+     */
+    public static final String HANDLERS_MAX_PROPERTY = "org.kjkoster.zapcat.zabbix.handlers.max";
+
     // the address to bind to (or 'null' to bind to any available interface).
     private final InetAddress address;
 
@@ -85,10 +261,36 @@ public final class ZabbixAgent implements Agent, Runnable {
 
     private ServerSocket serverSocket = null;
 
+    private ServerSocketChannel serverChannel = null;
+
     private volatile boolean stopping = false;
 
-    private final Set<String> whitelist;
-    private MBeanServer mbeanServer = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+    private final boolean nonBlocking;
+
+    private final int ioThreads;
+
+    private final int maxFrame;
+
+    private final int keepAlive;
+
+    private final boolean virtualHandlers;
+
+    private final int maxHandlers;
+
+    // the hosts that may connect (or 'null' to allow anyone).
+    private final Whitelist whitelist;
+
+    private final ResultCache cache;
+
+    private final MBeanIndex index;
+
+    private final CircuitBreaker breaker;
+
+    private final Sampler sampler;
+
+    private final Snapshots snapshots;
+
+    private final QueryEvaluator evaluator;
 
     /**
      * Configure a new Zabbix agent. Each agent needs the local port number to
@@ -138,13 +340,68 @@ public final class ZabbixAgent implements Agent, Runnable {
                 .parseInt(propertyPort);
 
         if (System.getProperty(WHITELIST_PROPERTY) != null) {
-            whitelist = new HashSet<String>();
-            whitelist.addAll(Arrays.asList(System.getProperty(
-                    WHITELIST_PROPERTY).split(",\\s*")));
+            whitelist = new Whitelist(System.getProperty(WHITELIST_PROPERTY),
+                    Long.parseLong(System.getProperty(
+                            WHITELIST_REFRESH_PROPERTY, "300")));
         } else {
             whitelist = null;
         }
 
+        final String propertyIo = System.getProperty(IO_PROPERTY, "blocking");
+        if (!"nio".equals(propertyIo) && !"blocking".equals(propertyIo)) {
+            log.warn("Unsupported I/O mode '" + propertyIo
+                    + "', using blocking I/O");
+        }
+        nonBlocking = "nio".equals(propertyIo);
+        ioThreads = Math.max(1, Integer.parseInt(System.getProperty(
+                IO_THREADS_PROPERTY, "1")));
+
+        maxFrame = Integer.parseInt(System.getProperty(MAX_FRAME_PROPERTY,
+                "65536"));
+        keepAlive = Integer.parseInt(System.getProperty(KEEPALIVE_PROPERTY,
+                "0"));
+
+        cache = new ResultCache(Long.parseLong(System.getProperty(
+                CACHE_TTL_PROPERTY, "0")), System
+                .getProperty(CACHE_RULES_PROPERTY), Integer.parseInt(System
+                .getProperty(CACHE_SIZE_PROPERTY, "10000")));
+        final MBeanServer platform = java.lang.management.ManagementFactory
+                .getPlatformMBeanServer();
+        index = new MBeanIndex(platform, Integer.parseInt(System.getProperty(
+                DISCOVERY_MAX_PROPERTY, "1000")));
+        breaker = new CircuitBreaker(Math.max(1, Integer.parseInt(System
+                .getProperty(BREAKER_THRESHOLD_PROPERTY, "3"))), Long
+                .parseLong(System.getProperty(BREAKER_COOLDOWN_PROPERTY,
+                        "60000")));
+        sampler = new Sampler(platform, Long.parseLong(System.getProperty(
+                SAMPLER_INTERVAL_PROPERTY, "100")), Integer.parseInt(System
+                .getProperty(SAMPLER_SIZE_PROPERTY, "1200")), Integer
+                .parseInt(System.getProperty(SAMPLER_SERIES_PROPERTY, "100")),
+                Integer.parseInt(System.getProperty(SAMPLER_CPU_PROPERTY, "5")));
+        snapshots = new Snapshots(platform, System.getProperty(HOT_PROPERTY),
+                Long.parseLong(System.getProperty(HOT_INTERVAL_PROPERTY,
+                        "1000")));
+        evaluator = new QueryEvaluator(platform, cache, Integer
+                .parseInt(System.getProperty(PLANS_SIZE_PROPERTY, "10000")),
+                index, new SampleStore(Integer.parseInt(System.getProperty(
+                        SAMPLES_SIZE_PROPERTY, "10000"))), sampler,
+                snapshots, Integer.parseInt(System.getProperty(
+                        READER_THREADS_PROPERTY, "4")), Long.parseLong(System
+                        .getProperty(DEADLINE_PROPERTY, "3000")), breaker,
+                Integer.parseInt(System.getProperty(
+                        DEADLINE_THREADS_PROPERTY, "16")));
+
+        final String propertyHandlers = System.getProperty(HANDLERS_PROPERTY,
+                "pool");
+        if (!"virtual".equals(propertyHandlers)
+                && !"pool".equals(propertyHandlers)) {
+            log.warn("Unsupported handler mode '" + propertyHandlers
+                    + "', using a thread pool");
+        }
+        virtualHandlers = "virtual".equals(propertyHandlers);
+        maxHandlers = Math.max(1, Integer.parseInt(System.getProperty(
+                HANDLERS_MAX_PROPERTY, "5")));
+
         daemon = new Thread(this, "Zabbix-agent");
         daemon.setDaemon(true);
         daemon.start();
@@ -167,12 +424,25 @@ public final class ZabbixAgent implements Agent, Runnable {
             // ignore, we're going down anyway...
         }
 
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            // ignore, we're going down anyway...
+        }
+
         try {
             daemon.join();
         } catch (InterruptedException e) {
             // ignore, we're going down anyway...
         }
 
+        if (whitelist != null) {
+            whitelist.stop();
+        }
+        evaluator.stop();
+
         log.debug("zabbix agent is done");
     }
 
@@ -180,27 +450,33 @@ public final class ZabbixAgent implements Agent, Runnable {
      * @see java.lang.Runnable#run()
      */
     public void run() {
-        final ExecutorService handlers = new ThreadPoolExecutor(1, 5, 60L,
-                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        final ExecutorService handlers = createHandlers();
         final ObjectName mbeanName = JMXHelper.register(new Agent(),
                 "org.kjkoster.zapcat:type=Agent,port=" + port);
+        final ObjectName cacheName = JMXHelper.register(
+                cache.new Statistics(),
+                "org.kjkoster.zapcat:type=ResultCache,port=" + port);
+        final ObjectName indexName = JMXHelper.register(
+                index.new Statistics(),
+                "org.kjkoster.zapcat:type=MBeanIndex,port=" + port);
+        final ObjectName breakerName = JMXHelper.register(
+                breaker.new Statistics(),
+                "org.kjkoster.zapcat:type=CircuitBreaker,port=" + port);
+        final ObjectName samplerName = JMXHelper.register(
+                sampler.new Statistics(),
+                "org.kjkoster.zapcat:type=Sampler,port=" + port);
+        final ObjectName snapshotsName = JMXHelper.register(
+                snapshots.new Statistics(),
+                "org.kjkoster.zapcat:type=Snapshots,port=" + port);
+
+        final SelectorLoop[] loops = new SelectorLoop[nonBlocking ? ioThreads
+                : 0];
 
         try {
-            // 0 means 'use default backlog'
-            serverSocket = new ServerSocket(port, 0, address);
-
-            while (!stopping) {
-                final Socket accepted = serverSocket.accept();
-                log.debug("accepted connection from "
-                        + accepted.getInetAddress().getHostAddress());
-
-                if (acceptedByWhitelist(accepted.getInetAddress())) {
-                    handlers.execute(new QueryHandler(mbeanServer, accepted));
-                } else {
-                    log.warn("rejecting ip address "
-                            + accepted.getInetAddress().getHostAddress()
-                            + ", it is not on the whitelist");
-                }
+            if (nonBlocking) {
+                acceptNonBlocking(handlers, loops);
+            } else {
+                acceptBlocking(handlers);
             }
         } catch (IOException e) {
             if (!stopping) {
@@ -216,6 +492,21 @@ public final class ZabbixAgent implements Agent, Runnable {
                 // ignore, we're going down anyway...
             }
 
+            try {
+                if (serverChannel != null) {
+                    serverChannel.close();
+                    serverChannel = null;
+                }
+            } catch (IOException e) {
+                // ignore, we're going down anyway...
+            }
+
+            for (final SelectorLoop loop : loops) {
+                if (loop != null) {
+                    loop.stop();
+                }
+            }
+
             try {
                 handlers.shutdown();
                 handlers.awaitTermination(10, TimeUnit.SECONDS);
@@ -223,36 +514,103 @@ public final class ZabbixAgent implements Agent, Runnable {
                 // ignore, we're going down anyway...
             }
 
+            JMXHelper.unregister(snapshotsName);
+            JMXHelper.unregister(samplerName);
+            JMXHelper.unregister(breakerName);
+            JMXHelper.unregister(indexName);
+            JMXHelper.unregister(cacheName);
             JMXHelper.unregister(mbeanName);
         }
     }
 
-    private boolean acceptedByWhitelist(final InetAddress accepted) {
-        if (whitelist == null) {
-            return true;
+    /*
+     * Virtual threads are looked up reflectively, so that the agent still
+     * compiles and runs on older JVMs.
+     */
+    private ExecutorService createHandlers() {
+        if (virtualHandlers) {
+            try {
+                return (ExecutorService) Executors.class.getMethod(
+                        "newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                log.warn("virtual threads are not available on this JVM, "
+                        + "using a pool of " + maxHandlers + " threads");
+            }
         }
 
-        for (final String allowed : whitelist) {
-            try {
-                if (accepted.equals(InetAddress.getByName(allowed))) {
-                    return true;
-                }
-            } catch (UnknownHostException e) {
-                log
-                        .error("invalid host '" + allowed
-                                + "' on the white list", e);
+        // The pool only grows past its core size when the queue is full, and
+        // an unbounded queue never is. So we make all threads core threads
+        // and let them time out instead.
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxHandlers,
+                maxHandlers, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private void acceptBlocking(final ExecutorService handlers)
+            throws IOException {
+        // 0 means 'use default backlog'
+        serverSocket = new ServerSocket(port, 0, address);
+
+        while (!stopping) {
+            final Socket accepted = serverSocket.accept();
+            log.debug("accepted connection from "
+                    + accepted.getInetAddress().getHostAddress());
+
+            if (acceptedByWhitelist(accepted.getInetAddress())) {
+                handlers.execute(new QueryHandler(evaluator, accepted,
+                        maxFrame, keepAlive));
+            } else {
+                log.warn("rejecting ip address "
+                        + accepted.getInetAddress().getHostAddress()
+                        + ", it is not on the whitelist");
+                accepted.close();
+            }
+        }
+    }
+
+    private void acceptNonBlocking(final ExecutorService handlers,
+            final SelectorLoop[] loops) throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(evaluator, handlers, maxFrame,
+                    keepAlive);
+            final Thread io = new Thread(loops[i], "Zabbix-agent-io-" + i);
+            io.setDaemon(true);
+            io.start();
+        }
+
+        serverChannel = ServerSocketChannel.open();
+        // 0 means 'use default backlog'
+        serverChannel.socket().bind(new InetSocketAddress(address, port), 0);
+
+        int next = 0;
+        while (!stopping) {
+            final SocketChannel accepted = serverChannel.accept();
+            final InetAddress peer = accepted.socket().getInetAddress();
+            log.debug("accepted connection from " + peer.getHostAddress());
+
+            if (acceptedByWhitelist(peer)) {
+                loops[next].register(accepted);
+                next = (next + 1) % loops.length;
+            } else {
+                log.warn("rejecting ip address " + peer.getHostAddress()
+                        + ", it is not on the whitelist");
+                accepted.close();
             }
         }
+    }
 
-        return false;
+    private boolean acceptedByWhitelist(final InetAddress accepted) {
+        return whitelist == null || whitelist.accepts(accepted);
     }
 
     public void setMbeanServer(MBeanServer mbeanServer) {
-        this.mbeanServer = mbeanServer;
+        evaluator.setMBeanServer(mbeanServer);
     }
 
     public MBeanServer getMbeanServer() {
-        return mbeanServer;
+        return evaluator.getMBeanServer();
     }
 
     /**
@@ -278,6 +636,8 @@ public final class ZabbixAgent implements Agent, Runnable {
         /**
          * Read the whitelist as a collection of strings in the format
          * &lt;supplied name&gt;&nbsp;(&lt;resolved address or exception&gt;).
+         * This shows the addresses as they were last resolved, it does not
+         * perform any DNS lookups of its own.
          * <p>
          * Of course, this should really be a map, but jconsole does not deal
          * gracefully with maps.
@@ -314,19 +674,11 @@ public final class ZabbixAgent implements Agent, Runnable {
          * @see org.kjkoster.zapcat.zabbix.ZabbixAgent.AgentMBean#getWhitelist()
          */
         public Collection<String> getWhitelist() {
-            final Collection<String> list = new HashSet<String>();
-            for (final String host : whitelist) {
-                try {
-                    list.add(host + " ("
-                            + InetAddress.getByName(host).getHostAddress()
-                            + ")");
-                } catch (UnknownHostException e) {
-                    list.add(host + " (" + e.getClass().getName() + ": "
-                            + e.getMessage() + ")");
-                }
+            if (whitelist == null) {
+                return Collections.emptyList();
             }
 
-            return list;
+            return whitelist.describe();
         }
     }
 }
@@ -16,16 +16,22 @@ package org.kjkoster.zapcat.zabbix;
  * Zapcat. If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.management.ObjectName;
 
+import org.apache.log4j.Logger;
 import org.kjkoster.zapcat.Trapper;
 
 /**
@@ -34,9 +40,15 @@ import org.kjkoster.zapcat.Trapper;
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 public final class ZabbixTrapper implements Trapper {
+    private static final Logger log = Logger.getLogger(ZabbixTrapper.class);
+
+    // tells apart the mbeans of trappers that send to the same server
+    private static final AtomicInteger instances = new AtomicInteger();
 
     /**
-     * The property key of the server that Zabbix runs on.
+     * The property key of the server that Zabbix runs on. This may also be a
+     * comma separated list of servers or proxies, each optionally followed by
+     * a colon and a port number, to spread the data over.
      */
     public static final String SERVER_PROPERTY = "org.kjkoster.zapcat.zabbix.server";
 
@@ -50,17 +62,133 @@ public final class ZabbixTrapper implements Trapper {
      */
     public static final String HOST_PROPERTY = "org.kjkoster.zapcat.zabbix.host";
 
+    /**
+     * The property key indicating the protocol to send data with, either
+     * "json" (the default) for the batched protocol of Zabbix 1.8 and later,
+     * or "xml" for the legacy protocol that sends one item per connection.
+     */
+    public static final String SENDER_PROTOCOL_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.protocol";
+
+    /**
+     * The property key indicating the maximum number of items that are sent
+     * in one batch. Defaults to 250.
+     */
+    public static final String BATCH_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.batch";
+
+    /**
+     * The property key indicating how long, in milliseconds, the sender waits
+     * for more items to fill up a batch. Defaults to 100.
+     */
+    public static final String LINGER_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.linger";
+
+    /**
+     * The property key indicating the maximum number of items waiting to be
+     * sent. Defaults to 10000.
+     */
+    public static final String QUEUE_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.queue";
+
+    /**
+     * The property key indicating what happens to new items when the queue is
+     * full: "drop-oldest" (the default), "drop-newest", "coalesce" to replace
+     * a waiting item with the same key, or "block" to wait for room.
+     */
+    public static final String OVERFLOW_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.overflow";
+
+    /**
+     * The property key indicating how long, in milliseconds, the "block"
+     * overflow policy waits for room in the queue. Defaults to 100.
+     */
+    public static final String OVERFLOW_TIMEOUT_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.overflow.timeout";
+
+    /**
+     * The property key for the directory in which items are spooled while
+     * the Zabbix server cannot be reached. Each trapper needs a directory of
+     * its own; a trapper that finds the directory locked by another runs
+     * without a spool. There is no spool by default, so such items are
+     * dropped.
+     */
+    public static final String SPOOL_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.spool";
+
+    /**
+     * The property key indicating the maximum size of the spool, in bytes.
+     * When the spool is full, the oldest items are dropped. Defaults to
+     * 67108864 (64 MB).
+     */
+    public static final String SPOOL_SIZE_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.spool.size";
+
+    /**
+     * The property key indicating the size of each spool file, in bytes.
+     * Defaults to 4194304 (4 MB).
+     */
+    public static final String SPOOL_SEGMENT_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.spool.segment";
+
+    /**
+     * The property key indicating the maximum number of spooled items that
+     * are sent per second once the Zabbix server is back. Defaults to 1000.
+     */
+    public static final String SPOOL_RATE_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.spool.rate";
+
+    /**
+     * The property key indicating how items are spread when there is more
+     * than one server, either "host" (the default) to send all items of one
+     * host to the same server, or "key" to spread them by their key.
+     */
+    public static final String ROUTING_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.routing";
+
+    /**
+     * The property key indicating the number of milliseconds between two
+     * flushes of coalesced values. Values trapped for a coalesced key are
+     * folded into one item per interval instead of being sent one by one.
+     * Defaults to 0, which disables coalescing.
+     */
+    public static final String COALESCE_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.coalesce";
+
+    /**
+     * The property key listing the keys that are coalesced as gauges, of
+     * which only the latest value in each interval is sent. Patterns are
+     * separated by semicolons and <code>*</code> matches anything. Defaults
+     * to <code>*</code>.
+     */
+    public static final String COALESCE_GAUGES_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.coalesce.gauges";
+
+    /**
+     * The property key listing the keys that are coalesced as counters, of
+     * which the sum of the values in each interval is sent. Patterns are
+     * separated by semicolons and <code>*</code> matches anything. Counters
+     * take precedence over gauges. There are no counters by default.
+     */
+    public static final String COALESCE_COUNTERS_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.coalesce.counters";
+
+    /**
+     * The property key indicating the maximum number of keys that are
+     * coalesced. Further keys are sent one by one. Defaults to 10000.
+     */
+    public static final String COALESCE_SIZE_PROPERTY = "org.kjkoster.zapcat.zabbix.sender.coalesce.size";
+
     /**
      * The default port of Zabbix servers.
      */
     public static final int DEFAULT_PORT = 10051;
 
-    private final BlockingQueue<Item> queue = new LinkedBlockingQueue<Item>();
+    private final SenderPool pool;
+
+    private final Coalescer coalescer;
+
+    private final ScheduledFuture<?> flusher;
 
-    private final Sender sender;
+    private final List<ObjectName> mbeanNames = new ArrayList<ObjectName>();
+
+    private final int id = instances.incrementAndGet();
 
     private final ScheduledExecutorService scheduler = Executors
-            .newScheduledThreadPool(1);
+            .newScheduledThreadPool(1, new ThreadFactory() {
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable,
+                            "Zabbix-trapper-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     private final String host;
 
@@ -68,7 +196,8 @@ public final class ZabbixTrapper implements Trapper {
      * Create a new Zabbix trapper, using the default port number.
      * 
      * @param zabbixServer
-     *            The name or IP address of the machine that Zabbix runs on.
+     *            The name or IP address of the machine that Zabbix runs on,
+     *            or a comma separated list of servers or proxies.
      * @param host
      *            The name of the host as defined in the hosts section in
      *            Zabbix.
@@ -77,25 +206,188 @@ public final class ZabbixTrapper implements Trapper {
      */
     public ZabbixTrapper(final String zabbixServer, final String host)
             throws UnknownHostException {
-        final String server = System.getProperty(SERVER_PROPERTY, zabbixServer);
-        final String serverPort = System.getProperty(PORT_PROPERTY, Integer
+        this(zabbixServer, host, true);
+    }
+
+    /**
+     * Create a new Zabbix trapper, optionally without a spool.
+     * 
+     * @param zabbixServer
+     *            The name or IP address of the machine that Zabbix runs on,
+     *            or a comma separated list of servers or proxies.
+     * @param host
+     *            The name of the host as defined in the hosts section in
+     *            Zabbix.
+     * @param spooling
+     *            <code>false</code> to ignore the spool setting, for
+     *            trappers that live too short to replay a spool.
+     * @throws UnknownHostException
+     *             When the zabbix server name could not be resolved.
+     */
+    ZabbixTrapper(final String zabbixServer, final String host,
+            final boolean spooling) throws UnknownHostException {
+        final String servers = System.getProperty(SERVER_PROPERTY,
+                zabbixServer);
+        final String defaultPort = System.getProperty(PORT_PROPERTY, Integer
                 .toString(DEFAULT_PORT));
         this.host = System.getProperty(HOST_PROPERTY, host);
 
-        sender = new Sender(queue, InetAddress.getByName(server), Integer
-                .parseInt(serverPort));
-        sender.start();
+        final String protocol = System.getProperty(SENDER_PROTOCOL_PROPERTY,
+                "json");
+        if (!"json".equals(protocol) && !"xml".equals(protocol)) {
+            log.warn("Unsupported sender protocol '" + protocol
+                    + "', using json");
+        }
+
+        final String propertyOverflow = System.getProperty(OVERFLOW_PROPERTY,
+                TrapQueue.Overflow.DROP_OLDEST.toString());
+        TrapQueue.Overflow overflow = TrapQueue.Overflow.parse(propertyOverflow);
+        if (overflow == null) {
+            log.warn("Unsupported overflow policy '" + propertyOverflow
+                    + "', using " + TrapQueue.Overflow.DROP_OLDEST);
+            overflow = TrapQueue.Overflow.DROP_OLDEST;
+        }
+
+        final String routing = System.getProperty(ROUTING_PROPERTY, "host");
+        if (!"host".equals(routing) && !"key".equals(routing)) {
+            log.warn("Unsupported routing '" + routing + "', using host");
+        }
+
+        // resolve all servers before we start anything
+        final List<String[]> destinations = new ArrayList<String[]>();
+        final List<InetAddress> addresses = new ArrayList<InetAddress>();
+        for (final String destination : servers.split(",")) {
+            if (destination.trim().length() > 0) {
+                final String[] parsed = parseDestination(destination.trim(),
+                        defaultPort);
+                destinations.add(parsed);
+                addresses.add(InetAddress.getByName(parsed[0]));
+            }
+        }
+        if (destinations.isEmpty()) {
+            throw new UnknownHostException("no Zabbix server in '" + servers
+                    + "'");
+        }
+
+        final String propertySpool = spooling ? System
+                .getProperty(SPOOL_PROPERTY) : null;
+        pool = new SenderPool("key".equals(routing));
+        for (int i = 0; i < destinations.size(); i++) {
+            final String server = destinations.get(i)[0];
+            final String serverPort = destinations.get(i)[1];
+
+            final TrapQueue queue = new TrapQueue(Integer.parseInt(System
+                    .getProperty(QUEUE_PROPERTY, "10000")), overflow, Long
+                    .parseLong(System.getProperty(OVERFLOW_TIMEOUT_PROPERTY,
+                            "100")));
+
+            Spool spool = null;
+            if (propertySpool != null) {
+                // servers that share a spool directory get one each inside it
+                final File directory = destinations.size() == 1 ? new File(
+                        propertySpool) : new File(propertySpool, (server + "-"
+                        + serverPort).replaceAll("[^A-Za-z0-9.-]", "_"));
+                try {
+                    spool = new Spool(directory, Long.parseLong(System
+                            .getProperty(SPOOL_SIZE_PROPERTY, "67108864")),
+                            Integer.parseInt(System.getProperty(
+                                    SPOOL_SEGMENT_PROPERTY, "4194304")));
+                } catch (IOException e) {
+                    log.warn("Unable to open spool in '" + directory
+                            + "', running without it", e);
+                }
+            }
+
+            final Sender sender = new Sender(queue, addresses.get(i), Integer
+                    .parseInt(serverPort), !"xml".equals(protocol), Integer
+                    .parseInt(System.getProperty(BATCH_PROPERTY, "250")), Long
+                    .parseLong(System.getProperty(LINGER_PROPERTY, "100")),
+                    spool, Integer.parseInt(System.getProperty(
+                            SPOOL_RATE_PROPERTY, "1000")), pool);
+            pool.add(queue, sender);
+
+            final String suffix = ",server=" + ObjectName.quote(server)
+                    + ",port=" + serverPort + ",id=" + id;
+            register(queue.new Statistics(), "org.kjkoster.zapcat:type=TrapQueue"
+                    + suffix);
+            register(sender.new Statistics(), "org.kjkoster.zapcat:type=Sender"
+                    + suffix);
+            if (spool != null) {
+                register(spool.new Statistics(),
+                        "org.kjkoster.zapcat:type=Spool" + suffix);
+            }
+        }
+        pool.start();
+
+        final long coalesce = Long.parseLong(System.getProperty(
+                COALESCE_PROPERTY, "0"));
+        if (coalesce > 0L) {
+            coalescer = new Coalescer(pool, coalesce, System.getProperty(
+                    COALESCE_GAUGES_PROPERTY, "*"), System
+                    .getProperty(COALESCE_COUNTERS_PROPERTY), Integer
+                    .parseInt(System.getProperty(COALESCE_SIZE_PROPERTY,
+                            "10000")));
+            register(coalescer.new Statistics(),
+                    "org.kjkoster.zapcat:type=Coalescer,server="
+                            + ObjectName.quote(destinations.get(0)[0])
+                            + ",port=" + destinations.get(0)[1] + ",id=" + id);
+            flusher = scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    coalescer.flush();
+                }
+            }, coalesce, coalesce, TimeUnit.MILLISECONDS);
+        } else {
+            coalescer = null;
+            flusher = null;
+        }
+    }
+
+    /*
+     * Only remember what we registered, so that stop() leaves the mbeans of
+     * other trappers alone.
+     */
+    private void register(final Object mbean, final String objectName) {
+        final ObjectName name = JMXHelper.tryRegister(mbean, objectName);
+        if (name != null) {
+            mbeanNames.add(name);
+        }
+    }
+
+    /*
+     * Split host:port, [v6 address]:port or just a host name.
+     */
+    private static String[] parseDestination(final String destination,
+            final String defaultPort) {
+        if (destination.startsWith("[")) {
+            final int close = destination.indexOf(']');
+            if (close > 0) {
+                return new String[] {
+                        destination.substring(1, close),
+                        destination.startsWith(":", close + 1) ? destination
+                                .substring(close + 2) : defaultPort };
+            }
+        }
+
+        final int colon = destination.indexOf(':');
+        if (colon > 0 && colon == destination.lastIndexOf(':')) {
+            return new String[] { destination.substring(0, colon),
+                    destination.substring(colon + 1) };
+        }
+        return new String[] { destination, defaultPort };
     }
 
     /**
      * @see org.kjkoster.zapcat.Trapper#stop()
      */
     public void stop() {
-        sender.stopping();
-        try {
-            sender.join();
-        } catch (InterruptedException e) {
-            // ignore, we're done anyway...
+        if (coalescer != null) {
+            flusher.cancel(false);
+            coalescer.flush();
+        }
+        scheduler.shutdown();
+        pool.stop();
+        for (final ObjectName mbeanName : mbeanNames) {
+            JMXHelper.unregister(mbeanName);
         }
     }
 
@@ -121,7 +413,68 @@ public final class ZabbixTrapper implements Trapper {
      *            The value. Cannot be <code>null</code>.
      */
     public void send(final String useHost, final String key, final Object value) {
-        queue.offer(new Item(useHost, key, value.toString()));
+        if (coalescer != null && coalescer.offer(useHost, key, value)) {
+            return;
+        }
+        pool.route(useHost, key).offer(useHost, key, value.toString());
+    }
+
+    /**
+     * Send a whole number to the monitoring server immediately. The number is
+     * formatted by the sending thread, so this is cheaper than boxing it.
+     * 
+     * @param key
+     *            The identifier of the data item.
+     * @param value
+     *            The value.
+     */
+    public void send(final String key, final long value) {
+        if (coalescer != null && coalescer.offer(host, key, value)) {
+            return;
+        }
+        pool.route(host, key).offer(host, key, value);
+    }
+
+    /**
+     * Send a number to the monitoring server immediately. The number is
+     * formatted by the sending thread, so this is cheaper than boxing it.
+     * 
+     * @param key
+     *            The identifier of the data item.
+     * @param value
+     *            The value.
+     */
+    public void send(final String key, final double value) {
+        if (coalescer != null && coalescer.offer(host, key, value)) {
+            return;
+        }
+        pool.route(host, key).offer(host, key, value);
+    }
+
+    /**
+     * Send a float to the monitoring server immediately. Without this, floats
+     * would be widened to doubles and sent with digits they never had.
+     * 
+     * @param key
+     *            The identifier of the data item.
+     * @param value
+     *            The value.
+     */
+    public void send(final String key, final float value) {
+        send(key, (Object) Float.valueOf(value));
+    }
+
+    /**
+     * Send a character to the monitoring server immediately. Without this,
+     * characters would be widened to their numeric value.
+     * 
+     * @param key
+     *            The identifier of the data item.
+     * @param value
+     *            The value.
+     */
+    public void send(final String key, final char value) {
+        send(key, (Object) Character.valueOf(value));
     }
 
     /**
@@ -130,7 +483,7 @@ public final class ZabbixTrapper implements Trapper {
      */
     public void send(final String key, final ObjectName objectName,
             final String attribute) {
-        queue.offer(new Item(host, key, objectName, attribute));
+        pool.route(host, key).offer(host, key, objectName, attribute);
     }
 
     /**